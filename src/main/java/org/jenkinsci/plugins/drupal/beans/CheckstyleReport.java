@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2015 Fengtan<https://github.com/fengtan/>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.jenkinsci.plugins.drupal.beans;
+
+import hudson.model.TaskListener;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Checkstyle reports written by Coder.
+ *
+ * Reports are streamed: only one <file> element is held in memory at a time.
+ *
+ * @author Fengtan https://github.com/fengtan/
+ *
+ */
+public class CheckstyleReport {
+
+	// Report published by the plugin, in the logs directory.
+	public static final String REPORT_FILE = "coder_review.xml";
+
+	private static final String ROOT = "checkstyle";
+	private static final String FILE = "file";
+
+	// Coder declares this version of the Checkstyle format.
+	private static final String DEFAULT_VERSION = "1.3.5";
+
+	/**
+	 * Merge several reports into a single one.
+	 * Reports which cannot be parsed are skipped, except for the <file> elements read before the error.
+	 * Return the number of <file> elements written.
+	 */
+	public static int merge(List<File> reports, File output, TaskListener listener) throws IOException {
+		XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+		XMLEventFactory eventFactory = XMLEventFactory.newInstance();
+		OutputStream out = new FileOutputStream(output);
+		int count = 0;
+		try {
+			XMLEventWriter writer = XMLOutputFactory.newInstance().createXMLEventWriter(out, "UTF-8");
+			writer.add(eventFactory.createStartDocument("UTF-8", "1.0"));
+			writer.add(eventFactory.createStartElement("", "", ROOT));
+			writer.add(eventFactory.createAttribute("version", getVersion(reports, inputFactory)));
+			for (File report: reports) {
+				InputStream in = open(report);
+				if (in == null) {
+					continue;
+				}
+				XMLEventReader reader = null;
+				try {
+					reader = inputFactory.createXMLEventReader(in);
+					List<XMLEvent> element = new ArrayList<XMLEvent>();
+					int depth = 0;
+					while (reader.hasNext()) {
+						XMLEvent event = reader.nextEvent();
+						if (event.isStartElement() && FILE.equals(event.asStartElement().getName().getLocalPart())) {
+							depth++;
+						}
+						if (depth > 0) {
+							element.add(event);
+						}
+						if (event.isEndElement() && FILE.equals(event.asEndElement().getName().getLocalPart()) && --depth == 0) {
+							// Only write complete elements, so a truncated report does not break the merged one.
+							for (XMLEvent e: element) {
+								writer.add(e);
+							}
+							element.clear();
+							count++;
+						}
+					}
+				} catch (XMLStreamException e) {
+					listener.getLogger().println("[DRUPAL] Unable to parse "+report.getName()+": "+e.getMessage());
+				} finally {
+					if (reader != null) {
+						try {
+							reader.close();
+						} catch (XMLStreamException e) {
+							// Ignore.
+						}
+					}
+					IOUtils.closeQuietly(in);
+				}
+			}
+			writer.add(eventFactory.createEndElement("", "", ROOT));
+			writer.add(eventFactory.createEndDocument());
+			writer.close();
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		} finally {
+			IOUtils.closeQuietly(out);
+		}
+		return count;
+	}
+
+	/**
+	 * Split a report into one report per directory, e.g. one per project.
+	 * Directories are relative to baseDir; <file> elements are assigned to the deepest directory containing them,
+	 * elements outside of all directories are dropped. Every directory gets a report, even if it is empty.
+	 */
+	public static void split(File report, Map<String, File> outputs, File baseDir, TaskListener listener) throws IOException {
+		// Sort directories deepest first so nested projects win over their parents.
+		List<String> dirs = new ArrayList<String>(outputs.keySet());
+		Collections.sort(dirs, Collections.reverseOrder());
+		String base = FilenameUtils.separatorsToUnix(baseDir.getAbsolutePath())+"/";
+
+		XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+		XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+		XMLEventFactory eventFactory = XMLEventFactory.newInstance();
+		String version = getVersion(Collections.singletonList(report), inputFactory);
+		Map<String, OutputStream> streams = new HashMap<String, OutputStream>();
+		Map<String, XMLEventWriter> writers = new HashMap<String, XMLEventWriter>();
+		InputStream in = open(report);
+		XMLEventReader reader = null;
+		try {
+			for (String dir: dirs) {
+				OutputStream out = new FileOutputStream(outputs.get(dir));
+				streams.put(dir, out);
+				XMLEventWriter writer = outputFactory.createXMLEventWriter(out, "UTF-8");
+				writers.put(dir, writer);
+				writer.add(eventFactory.createStartDocument("UTF-8", "1.0"));
+				writer.add(eventFactory.createStartElement("", "", ROOT));
+				writer.add(eventFactory.createAttribute("version", version));
+			}
+			if (in != null) {
+				reader = inputFactory.createXMLEventReader(in);
+				List<XMLEvent> element = new ArrayList<XMLEvent>();
+				String owner = null;
+				int depth = 0;
+				while (reader.hasNext()) {
+					XMLEvent event = reader.nextEvent();
+					if (event.isStartElement() && FILE.equals(event.asStartElement().getName().getLocalPart()) && depth++ == 0) {
+						Attribute name = event.asStartElement().getAttributeByName(new QName("name"));
+						String path = (name == null) ? "" : StringUtils.removeStart(FilenameUtils.separatorsToUnix(name.getValue()), base);
+						owner = null;
+						for (String dir: dirs) {
+							if (dir.isEmpty() || path.startsWith(dir+"/")) {
+								owner = dir;
+								break;
+							}
+						}
+					}
+					if (depth > 0) {
+						element.add(event);
+					}
+					if (event.isEndElement() && FILE.equals(event.asEndElement().getName().getLocalPart()) && --depth == 0) {
+						if (owner != null) {
+							for (XMLEvent e: element) {
+								writers.get(owner).add(e);
+							}
+						}
+						element.clear();
+					}
+				}
+			}
+			for (XMLEventWriter writer: writers.values()) {
+				writer.add(eventFactory.createEndElement("", "", ROOT));
+				writer.add(eventFactory.createEndDocument());
+				writer.close();
+			}
+		} catch (XMLStreamException e) {
+			throw new IOException("Unable to split "+report.getName(), e);
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (XMLStreamException e) {
+					// Ignore.
+				}
+			}
+			IOUtils.closeQuietly(in);
+			for (OutputStream out: streams.values()) {
+				IOUtils.closeQuietly(out);
+			}
+		}
+	}
+
+	/**
+	 * Get the version of the Checkstyle format declared by the first report which can be read.
+	 */
+	private static String getVersion(List<File> reports, XMLInputFactory inputFactory) {
+		for (File report: reports) {
+			InputStream in = null;
+			try {
+				in = open(report);
+				if (in == null) {
+					continue;
+				}
+				XMLEventReader reader = inputFactory.createXMLEventReader(in);
+				while (reader.hasNext()) {
+					XMLEvent event = reader.nextEvent();
+					if (event.isStartElement()) {
+						StartElement root = event.asStartElement();
+						Attribute version = root.getAttributeByName(new QName("version"));
+						if (ROOT.equals(root.getName().getLocalPart()) && version != null) {
+							return version.getValue();
+						}
+						break;
+					}
+				}
+			} catch (IOException e) {
+				// Try next report.
+			} catch (XMLStreamException e) {
+				// Try next report.
+			} finally {
+				IOUtils.closeQuietly(in);
+			}
+		}
+		return DEFAULT_VERSION;
+	}
+
+	/**
+	 * Open a report, skipping anything Drush may have printed before the XML declaration.
+	 * Return null if the report does not exist or holds no XML.
+	 */
+	private static InputStream open(File report) throws IOException {
+		if (!report.isFile()) {
+			return null;
+		}
+		InputStream in = new BufferedInputStream(new FileInputStream(report));
+		int b;
+		do {
+			in.mark(1);
+			b = in.read();
+		} while (b != -1 && b != '<');
+		if (b == -1) {
+			IOUtils.closeQuietly(in);
+			return null;
+		}
+		in.reset();
+		return in;
+	}
+
+}
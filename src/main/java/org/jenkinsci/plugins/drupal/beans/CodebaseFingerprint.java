@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2015 Fengtan<https://github.com/fengtan/>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.jenkinsci.plugins.drupal.beans;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FilenameUtils;
+
+/**
+ * Cheap fingerprint of a Drupal code base, based on the size and modification time of files.
+ *
+ * @author Fengtan https://github.com/fengtan/
+ *
+ */
+public class CodebaseFingerprint {
+
+	/**
+	 * Map relative paths of files matching the given extensions to 'size:mtime'.
+	 *
+	 * Public files directories (sites/xxx/files) are skipped.
+	 */
+	public static SortedMap<String, String> scan(File root, String... extensions) throws IOException {
+		return scan(root, 1, extensions);
+	}
+
+	/**
+	 * Same as scan(root, extensions), but walk directories concurrently.
+	 */
+	public static SortedMap<String, String> scan(File root, int threads, String... extensions) throws IOException {
+		SortedMap<String, String> files = new TreeMap<String, String>();
+		if (!root.isDirectory()) {
+			return files;
+		}
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+		try {
+			files.putAll(pool.invoke(new ScanTask(root.toPath(), root.toPath(), extensions)));
+		} finally {
+			pool.shutdownNow();
+		}
+		return files;
+	}
+
+	/**
+	 * Compute a digest of a map of files.
+	 */
+	public static String digest(Map<String, String> files) {
+		MessageDigest digest = getMessageDigest();
+		Charset utf8 = Charset.forName("UTF-8");
+		for (Map.Entry<String, String> entry: files.entrySet()) {
+			digest.update(entry.getKey().getBytes(utf8));
+			digest.update((byte) 0);
+			digest.update(entry.getValue().getBytes(utf8));
+			digest.update((byte) '\n');
+		}
+		return Hex.encodeHexString(digest.digest());
+	}
+
+	/**
+	 * Compute a digest of the content of files matching the given extensions.
+	 * Slower than scan() but does not depend on modification times, e.g. to compare code bases built at different times.
+	 */
+	public static String digestContent(File root, String... extensions) throws IOException {
+		SortedMap<String, String> files = scan(root, extensions);
+		for (Map.Entry<String, String> entry: files.entrySet()) {
+			byte[] content = Files.readAllBytes(new File(root, entry.getKey()).toPath());
+			entry.setValue(Hex.encodeHexString(getMessageDigest().digest(content)));
+		}
+		return digest(files);
+	}
+
+	/**
+	 * Compute a digest of a string.
+	 */
+	public static String digest(String value) {
+		return Hex.encodeHexString(getMessageDigest().digest(value.getBytes(Charset.forName("UTF-8"))));
+	}
+
+	private static MessageDigest getMessageDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Scan a directory: files are listed by the current thread, sub-directories are scanned by forked tasks.
+	 */
+	private static class ScanTask extends RecursiveTask<Map<String, String>> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Path rootPath;
+		private final Path dir;
+		private final String[] extensions;
+
+		ScanTask(Path rootPath, Path dir, String[] extensions) {
+			this.rootPath = rootPath;
+			this.dir = dir;
+			this.extensions = extensions;
+		}
+
+		@Override
+		protected Map<String, String> compute() {
+			Map<String, String> files = new HashMap<String, String>();
+			List<ScanTask> subtasks = new ArrayList<ScanTask>();
+			try {
+				DirectoryStream<Path> stream = Files.newDirectoryStream(dir);
+				try {
+					for (Path path: stream) {
+						BasicFileAttributes attrs;
+						try {
+							attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+						} catch (IOException e) {
+							continue;
+						}
+						if (attrs.isDirectory()) {
+							if (!isPublicFiles(path)) {
+								ScanTask subtask = new ScanTask(rootPath, path, extensions);
+								subtask.fork();
+								subtasks.add(subtask);
+							}
+						} else if (extensions.length == 0 || FilenameUtils.isExtension(path.getFileName().toString(), extensions)) {
+							files.put(FilenameUtils.separatorsToUnix(rootPath.relativize(path).toString()), attrs.size()+":"+attrs.lastModifiedTime().toMillis());
+						}
+					}
+				} finally {
+					stream.close();
+				}
+			} catch (IOException e) {
+				// Unreadable directory: skip it, like unreadable files.
+			}
+			for (ScanTask subtask: subtasks) {
+				files.putAll(subtask.join());
+			}
+			return files;
+		}
+
+		/**
+		 * Return true if a directory is a public files directory (sites/xxx/files).
+		 */
+		private static boolean isPublicFiles(Path dir) {
+			Path parent = dir.getParent();
+			return "files".equals(dir.getFileName().toString()) && parent != null && parent.getParent() != null && "sites".equals(parent.getParent().getFileName().toString());
+		}
+
+	}
+
+}
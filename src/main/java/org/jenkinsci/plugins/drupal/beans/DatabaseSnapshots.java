@@ -0,0 +1,352 @@
+/*
+ * Copyright (c) 2015 Fengtan<https://github.com/fengtan/>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.jenkinsci.plugins.drupal.beans;
+
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.remoting.VirtualChannel;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Node-local snapshots of Drupal databases, keyed by whatever determines the content of a fresh installation
+ * (installation profile, code base, etc).
+ *
+ * Snapshots live on the node which hosts the Drupal root: dumps are split and evicted there, and only streamed
+ * through the controller when they are imported.
+ *
+ * Dumps are split per table and compressed, so they can be imported by several concurrent processes.
+ * The least recently used snapshots are evicted once the snapshots take more than maxSize megabytes.
+ *
+ * @author Fengtan https://github.com/fengtan/
+ *
+ */
+public class DatabaseSnapshots {
+
+	// Maximum size of the snapshots kept on every node, in megabytes.
+	private static final long MAX_SIZE = Long.getLong(DatabaseSnapshots.class.getName()+".maxSize", 2048);
+
+	// Number of tables imported concurrently.
+	private static final int THREADS = Integer.getInteger(DatabaseSnapshots.class.getName()+".threads", 4);
+
+	// Snapshots directory, relative to the root of the node.
+	private static final String SNAPSHOTS_DIR = "drupal-db-snapshots";
+
+	// Every snapshot holds a directory of table dumps, a copy of settings.php and a file touched every time the snapshot is used.
+	private static final String TABLES = "tables";
+	private static final String SETTINGS = "settings.php";
+	private static final String LAST_USED = "last-used";
+
+	// mysqldump starts the dump of every table with this comment.
+	private static final Pattern TABLE_PATTERN = Pattern.compile("^-- Table structure for table `(.+)`$");
+
+	// Serialize operations on snapshots between executors of the node (operations run on the node).
+	private static final Object LOCK = new Object();
+
+	private final FilePath dir;
+
+	public DatabaseSnapshots(FilePath dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * Get the snapshots of the node holding a workspace.
+	 */
+	public static DatabaseSnapshots forNode(FilePath workspace) {
+		Computer computer = Computer.currentComputer();
+		Node node = (computer == null) ? null : computer.getNode();
+		FilePath nodeRoot = (node == null) ? null : node.getRootPath();
+		FilePath root = (nodeRoot == null) ? workspace.getParent() : nodeRoot;
+		return new DatabaseSnapshots(root.child(SNAPSHOTS_DIR));
+	}
+
+	public boolean contains(String key) throws IOException, InterruptedException {
+		return dir.child(key).child(LAST_USED).exists();
+	}
+
+	/**
+	 * Dump the database of a Drupal root, along with its settings.php.
+	 */
+	public boolean save(String key, DrushInvocation drush, FilePath rootPath) throws IOException, InterruptedException {
+		dir.mkdirs();
+		FilePath tmp = dir.child(key+".tmp"+System.nanoTime());
+		FilePath dump = dir.child(key+".sql"+System.nanoTime());
+		try {
+			if (!drush.sqlDump(dump)) {
+				return false;
+			}
+			dump.act(new Split(tmp.child(TABLES).getRemote()));
+			rootPath.child("sites/default/settings.php").copyTo(tmp.child(SETTINGS));
+			tmp.child(LAST_USED).touch(System.currentTimeMillis());
+			dir.act(new Commit(key, tmp.getName(), MAX_SIZE));
+			return true;
+		} finally {
+			dump.delete();
+			tmp.deleteRecursive();
+		}
+	}
+
+	/**
+	 * Split a dump into one compressed file per table.
+	 * Statements preceding the first table (character set, foreign key checks, etc) are repeated in every file.
+	 * Dumps which are not produced by mysqldump are kept in a single file.
+	 */
+	protected static void split(File dump, File tablesDir) throws IOException {
+		tablesDir.mkdirs();
+		StringBuilder preamble = new StringBuilder();
+		Writer writer = null;
+		int count = 0;
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(dump), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				Matcher matcher = TABLE_PATTERN.matcher(line);
+				if (matcher.matches()) {
+					IOUtils.closeQuietly(writer);
+					writer = open(new File(tablesDir, String.format("%05d.sql.gz", count++)));
+					writer.write(preamble.toString());
+				} else if (writer == null) {
+					preamble.append(line).append('\n');
+					continue;
+				}
+				writer.write(line);
+				writer.write('\n');
+			}
+			if (writer == null) {
+				// Not a mysqldump dump: keep everything in a single file.
+				writer = open(new File(tablesDir, String.format("%05d.sql.gz", count)));
+				writer.write(preamble.toString());
+			}
+		} finally {
+			IOUtils.closeQuietly(writer);
+			IOUtils.closeQuietly(reader);
+		}
+	}
+
+	private static Writer open(File file) throws IOException {
+		return new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(file)), "UTF-8");
+	}
+
+	/**
+	 * Replace the database of a Drupal root with a snapshot, along with its settings.php.
+	 * Tables are imported concurrently, every file being decompressed while it is streamed into 'drush sql-cli'.
+	 */
+	public boolean restore(String key, final DrushInvocation drush, FilePath rootPath) throws IOException, InterruptedException {
+		if (!dir.act(new Touch(key))) {
+			return false;
+		}
+		FilePath entry = dir.child(key);
+
+		// Restore settings.php first so Drush knows which database to connect to.
+		// Drupal makes sites/default and settings.php read-only.
+		FilePath defaultDir = rootPath.child("sites/default");
+		defaultDir.mkdirs();
+		FilePath settings = defaultDir.child("settings.php");
+		for (FilePath file: new FilePath[] {defaultDir, settings}) {
+			int mode = file.exists() ? file.mode() : -1;
+			if (mode != -1 && (mode & 0200) == 0) {
+				file.chmod(mode | 0200);
+			}
+		}
+		entry.child(SETTINGS).copyTo(settings);
+
+		if (!drush.sqlDrop()) {
+			return false;
+		}
+		List<FilePath> tables = entry.child(TABLES).list();
+		if (tables == null) {
+			return false;
+		}
+		Collections.sort(tables, new Comparator<FilePath>() {
+			@Override
+			public int compare(FilePath a, FilePath b) {
+				return a.getName().compareTo(b.getName());
+			}
+		});
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(THREADS, tables.size())));
+		try {
+			List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+			for (final FilePath table: tables) {
+				futures.add(executor.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() throws IOException, InterruptedException {
+						InputStream in = new GZIPInputStream(table.read());
+						try {
+							return drush.sqlImport(in);
+						} finally {
+							IOUtils.closeQuietly(in);
+						}
+					}
+				}));
+			}
+			boolean result = true;
+			for (Future<Boolean> future: futures) {
+				try {
+					result &= future.get();
+				} catch (ExecutionException e) {
+					throw new IOException(e.getCause());
+				}
+			}
+			return result;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Delete least recently used snapshots until snapshots fit into maxSize megabytes.
+	 */
+	private static void evict(File dir, long maxSize) throws IOException {
+		File[] entries = dir.listFiles();
+		if (entries == null) {
+			return;
+		}
+		List<File> complete = new ArrayList<File>();
+		for (File entry: entries) {
+			if (new File(entry, LAST_USED).exists()) {
+				complete.add(entry);
+			}
+		}
+		Collections.sort(complete, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Long.compare(new File(b, LAST_USED).lastModified(), new File(a, LAST_USED).lastModified());
+			}
+		});
+		long size = 0;
+		for (File entry: complete) {
+			size += FileUtils.sizeOfDirectory(entry);
+			// Always keep the most recently used snapshot.
+			if (size > maxSize * 1024 * 1024 && entry != complete.get(0)) {
+				FileUtils.deleteDirectory(entry);
+			}
+		}
+	}
+
+	private static class Split implements FileCallable<Void> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String tablesDir;
+
+		private Split(String tablesDir) {
+			this.tablesDir = tablesDir;
+		}
+
+		@Override
+		public Void invoke(File dump, VirtualChannel channel) throws IOException {
+			split(dump, new File(tablesDir));
+			return null;
+		}
+
+	}
+
+	/**
+	 * Move a complete snapshot into place, then evict least recently used snapshots.
+	 */
+	private static class Commit implements FileCallable<Void> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String key;
+		private final String tmpName;
+		// Configured on the controller, not on the node.
+		private final long maxSize;
+
+		private Commit(String key, String tmpName, long maxSize) {
+			this.key = key;
+			this.tmpName = tmpName;
+			this.maxSize = maxSize;
+		}
+
+		@Override
+		public Void invoke(File dir, VirtualChannel channel) throws IOException {
+			File tmp = new File(dir, tmpName);
+			File entry = new File(dir, key);
+			synchronized (LOCK) {
+				if (new File(entry, LAST_USED).exists()) {
+					// Another build saved the same snapshot meanwhile.
+					FileUtils.deleteDirectory(tmp);
+				} else {
+					FileUtils.deleteDirectory(entry);
+					Files.move(tmp.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+				}
+				evict(dir, maxSize);
+			}
+			return null;
+		}
+
+	}
+
+	/**
+	 * Mark a snapshot as used. Return false if it does not exist.
+	 */
+	private static class Touch implements FileCallable<Boolean> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String key;
+
+		private Touch(String key) {
+			this.key = key;
+		}
+
+		@Override
+		public Boolean invoke(File dir, VirtualChannel channel) throws IOException {
+			File lastUsed = new File(new File(dir, key), LAST_USED);
+			synchronized (LOCK) {
+				if (!lastUsed.exists()) {
+					return false;
+				}
+				FileUtils.touch(lastUsed);
+			}
+			return true;
+		}
+
+	}
+
+}
@@ -30,12 +30,18 @@ public class DrupalExtension {
 	private String type;
 	private String status;
 	private String version;
+	private String schemaVersion;
 	
 	public DrupalExtension(String name, String type, String status, String version) {
+		this(name, type, status, version, "");
+	}
+	
+	public DrupalExtension(String name, String type, String status, String version, String schemaVersion) {
 		this.name = name;
 		this.type = type;
 		this.status = status;
 		this.version = version;
+		this.schemaVersion = schemaVersion;
 	}
 	
 	public String getName() {
@@ -54,4 +60,11 @@ public class DrupalExtension {
 		return version;
 	}
 	
+	/**
+	 * Installed schema version, or an empty string if unknown.
+	 */
+	public String getSchemaVersion() {
+		return schemaVersion;
+	}
+	
 }
@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2015 Fengtan<https://github.com/fengtan/>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.jenkinsci.plugins.drupal.beans;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.jenkinsci.plugins.drupal.beans.DrupalTestScanner.Declaration;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+/**
+ * Test classes available on a code base, along with the fingerprint of the test files they were discovered from.
+ * 
+ * Stored as a JSON file so test discovery can be skipped when test files have not changed.
+ * The catalog records which discovery method built it: Drush and static discovery do not list the same tests
+ * (static discovery lists tests of disabled modules too), so a catalog is only reused by the same method.
+ *
+ * @author Fengtan https://github.com/fengtan/
+ *
+ */
+public class DrupalTestCatalog {
+
+	// Files that may declare test classes or change the list of available tests.
+	public static final String[] EXTENSIONS = new String[] {"test", "php", "info"};
+
+	private final File file;
+	private String discovery;
+	private String fingerprint;
+	private Map<String, String> files = new HashMap<String, String>();
+	private Collection<DrupalTest> tests = new ArrayList<DrupalTest>();
+	// Class declarations found by static discovery, keyed by path.
+	private Map<String, List<Declaration>> declarations = new HashMap<String, List<Declaration>>();
+
+	public DrupalTestCatalog(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Load the catalog, if it exists.
+	 */
+	public void load() throws IOException {
+		if (!file.exists()) {
+			return;
+		}
+		Reader reader = new InputStreamReader(FileUtils.openInputStream(file), "UTF-8");
+		JSONObject json;
+		try {
+			json = (JSONObject) JSONValue.parse(reader);
+		} finally {
+			IOUtils.closeQuietly(reader);
+		}
+		if (json == null) {
+			return;
+		}
+		discovery = Objects.toString(json.get("discovery"), null);
+		fingerprint = Objects.toString(json.get("fingerprint"), null);
+		JSONObject jsonFiles = (JSONObject) json.get("files");
+		if (jsonFiles != null) {
+			for (Object path: jsonFiles.keySet()) {
+				files.put(path.toString(), Objects.toString(jsonFiles.get(path), ""));
+			}
+		}
+		JSONArray jsonTests = (JSONArray) json.get("tests");
+		if (jsonTests != null) {
+			for (Object entry: jsonTests) {
+				JSONObject test = (JSONObject) entry;
+				tests.add(new DrupalTest(Objects.toString(test.get("group"), ""), Objects.toString(test.get("class"), "")));
+			}
+		}
+		JSONObject jsonDeclarations = (JSONObject) json.get("declarations");
+		if (jsonDeclarations != null) {
+			for (Object path: jsonDeclarations.keySet()) {
+				List<Declaration> list = new ArrayList<Declaration>();
+				for (Object entry: (JSONArray) jsonDeclarations.get(path)) {
+					JSONObject declaration = (JSONObject) entry;
+					list.add(new Declaration(
+						Objects.toString(declaration.get("class"), ""),
+						Objects.toString(declaration.get("parent"), ""),
+						Boolean.TRUE.equals(declaration.get("abstract")),
+						(String) declaration.get("group")
+					));
+				}
+				declarations.put(path.toString(), list);
+			}
+		}
+	}
+
+	/**
+	 * Save the catalog.
+	 */
+	@SuppressWarnings("unchecked")
+	public void save() throws IOException {
+		JSONObject json = new JSONObject();
+		json.put("discovery", discovery);
+		json.put("fingerprint", fingerprint);
+		JSONObject jsonFiles = new JSONObject();
+		jsonFiles.putAll(files);
+		json.put("files", jsonFiles);
+		JSONArray jsonTests = new JSONArray();
+		for (DrupalTest test: tests) {
+			JSONObject jsonTest = new JSONObject();
+			jsonTest.put("group", test.getGroup());
+			jsonTest.put("class", test.getClassName());
+			jsonTests.add(jsonTest);
+		}
+		json.put("tests", jsonTests);
+		JSONObject jsonDeclarations = new JSONObject();
+		for (Map.Entry<String, List<Declaration>> entry: declarations.entrySet()) {
+			JSONArray list = new JSONArray();
+			for (Declaration declaration: entry.getValue()) {
+				JSONObject jsonDeclaration = new JSONObject();
+				jsonDeclaration.put("class", declaration.className);
+				jsonDeclaration.put("parent", declaration.parent);
+				jsonDeclaration.put("abstract", declaration.isAbstract);
+				jsonDeclaration.put("group", declaration.group);
+				list.add(jsonDeclaration);
+			}
+			jsonDeclarations.put(entry.getKey(), list);
+		}
+		json.put("declarations", jsonDeclarations);
+
+		Writer writer = new OutputStreamWriter(FileUtils.openOutputStream(file), "UTF-8");
+		try {
+			json.writeJSONString(writer);
+		} finally {
+			IOUtils.closeQuietly(writer);
+		}
+	}
+
+	/**
+	 * Return true if the catalog was built from these files, using this discovery method.
+	 */
+	public boolean isUpToDate(String currentDiscovery, Map<String, String> currentFiles) {
+		return currentDiscovery.equals(discovery) && fingerprint != null && fingerprint.equals(CodebaseFingerprint.digest(currentFiles));
+	}
+
+	/**
+	 * Replace the content of the catalog with tests discovered by Drush.
+	 */
+	public void update(String currentDiscovery, Map<String, String> currentFiles, Collection<DrupalTest> currentTests) {
+		discovery = currentDiscovery;
+		fingerprint = CodebaseFingerprint.digest(currentFiles);
+		files = new HashMap<String, String>(currentFiles);
+		tests = new ArrayList<DrupalTest>(currentTests);
+		// Drush does not tell which file declares which test.
+		declarations.clear();
+	}
+
+	/**
+	 * Get PHP files that were added or modified since the last static discovery.
+	 */
+	public Collection<String> getChangedFiles(Map<String, String> currentFiles) {
+		Collection<String> changed = new ArrayList<String>();
+		for (Map.Entry<String, String> entry: currentFiles.entrySet()) {
+			String path = entry.getKey();
+			if (FilenameUtils.isExtension(path, DrupalTestScanner.EXTENSIONS) && (!declarations.containsKey(path) || !entry.getValue().equals(files.get(path)))) {
+				changed.add(path);
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Update the catalog with declarations of files that were parsed again.
+	 * Declarations of files that no longer exist are dropped.
+	 */
+	public void update(String currentDiscovery, Map<String, String> currentFiles, Map<String, List<Declaration>> changedDeclarations) {
+		discovery = currentDiscovery;
+		declarations.keySet().retainAll(currentFiles.keySet());
+		declarations.putAll(changedDeclarations);
+		fingerprint = CodebaseFingerprint.digest(currentFiles);
+		files = new HashMap<String, String>(currentFiles);
+		tests = DrupalTestScanner.resolve(declarations.values());
+	}
+
+	public Collection<DrupalTest> getTests() {
+		return tests;
+	}
+
+	/**
+	 * Get tests found by static discovery, except tests declared by modules which are not enabled.
+	 * Files are mapped to modules as returned by DrupalTestScanner.getModules().
+	 */
+	public Collection<DrupalTest> getTests(Map<String, String> modules, Collection<String> enabled) {
+		Set<String> excluded = new HashSet<String>();
+		for (Map.Entry<String, List<Declaration>> entry: declarations.entrySet()) {
+			String module = modules.get(entry.getKey());
+			if (module != null && !enabled.contains(module)) {
+				for (Declaration declaration: entry.getValue()) {
+					excluded.add(declaration.className.toLowerCase());
+				}
+			}
+		}
+		Collection<DrupalTest> filtered = new ArrayList<DrupalTest>();
+		for (DrupalTest test: tests) {
+			if (!excluded.contains(test.getClassName().toLowerCase())) {
+				filtered.add(test);
+			}
+		}
+		return filtered;
+	}
+
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2015 Fengtan<https://github.com/fengtan/>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.jenkinsci.plugins.drupal.beans;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FilenameUtils;
+
+/**
+ * Discover Simpletest classes by parsing PHP files, without bootstrapping Drupal.
+ *
+ * @author Fengtan https://github.com/fengtan/
+ *
+ */
+public class DrupalTestScanner {
+
+	// Files that may declare test classes.
+	public static final String[] EXTENSIONS = new String[] {"test", "php"};
+
+	// Base classes of Simpletest.
+	private static final Set<String> BASE_CLASSES = new HashSet<String>(Arrays.asList("DrupalTestCase", "DrupalWebTestCase", "DrupalUnitTestCase"));
+
+	private static final Pattern CLASS_PATTERN = Pattern.compile("^\\s*(abstract\\s+)?class\\s+(\\w+)\\s+extends\\s+(\\w+)", Pattern.MULTILINE | Pattern.CASE_INSENSITIVE);
+	private static final Pattern GROUP_PATTERN = Pattern.compile("['\"]group['\"]\\s*=>\\s*(?:t\\(\\s*)?(['\"])(.*?)\\1");
+	private static final Pattern FILES_PATTERN = Pattern.compile("^\\s*files\\[\\]\\s*=\\s*['\"]?([^'\"\\s;]+)", Pattern.MULTILINE);
+
+	/**
+	 * Parse files concurrently.
+	 * Returns class declarations keyed by path (files that declare no class are mapped to an empty list).
+	 */
+	public static Map<String, List<Declaration>> parse(final File root, Collection<String> paths, int threads) throws IOException, InterruptedException {
+		Map<String, Future<List<Declaration>>> futures = new HashMap<String, Future<List<Declaration>>>();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+		try {
+			for (final String path: paths) {
+				if (!FilenameUtils.isExtension(path, EXTENSIONS)) {
+					continue;
+				}
+				futures.put(path, executor.submit(new Callable<List<Declaration>>() {
+					@Override
+					public List<Declaration> call() throws IOException {
+						return parse(new File(root, path));
+					}
+				}));
+			}
+			Map<String, List<Declaration>> declarations = new HashMap<String, List<Declaration>>();
+			for (Map.Entry<String, Future<List<Declaration>>> future: futures.entrySet()) {
+				try {
+					declarations.put(future.getKey(), future.getValue().get());
+				} catch (ExecutionException e) {
+					throw new IOException("Unable to parse "+future.getKey(), e.getCause());
+				}
+			}
+			return declarations;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Parse class declarations of a single file.
+	 * The group of a class is read from the getInfo() array found in its body.
+	 */
+	public static List<Declaration> parse(File file) throws IOException {
+		// PHP files may use any encoding: ISO-8859-1 maps every byte to a character so decoding never fails.
+		String content = new String(Files.readAllBytes(file.toPath()), Charset.forName("ISO-8859-1"));
+		List<Declaration> declarations = new ArrayList<Declaration>();
+		Matcher matcher = CLASS_PATTERN.matcher(content);
+		List<Integer> starts = new ArrayList<Integer>();
+		while (matcher.find()) {
+			declarations.add(new Declaration(matcher.group(2), matcher.group(3), matcher.group(1) != null, null));
+			starts.add(matcher.end());
+		}
+		for (int i = 0; i < declarations.size(); i++) {
+			// The body of a class ends where the next class starts.
+			int end = (i + 1 < starts.size()) ? starts.get(i + 1) : content.length();
+			Matcher group = GROUP_PATTERN.matcher(content).region(starts.get(i), end);
+			if (group.find()) {
+				Declaration declaration = declarations.get(i);
+				declarations.set(i, new Declaration(declaration.className, declaration.parent, declaration.isAbstract, group.group(2)));
+			}
+		}
+		return declarations;
+	}
+
+	/**
+	 * Map files (relative to the Drupal root) to the module they belong to.
+	 *
+	 * Drupal 7 modules list their test files in the files[] of their .info file, like the registry does;
+	 * other files belong to the closest module found in their parent directories.
+	 * Files which belong to no module are not mapped.
+	 */
+	public static Map<String, String> getModules(File root, Collection<String> paths) throws IOException {
+		Map<String, String> declared = new HashMap<String, String>();
+		Map<String, String> dirs = new HashMap<String, String>();
+		Set<String> ambiguous = new HashSet<String>();
+		for (String path: paths) {
+			if (!FilenameUtils.isExtension(path, "info")) {
+				continue;
+			}
+			String module = FilenameUtils.getBaseName(path);
+			String dir = FilenameUtils.getPathNoEndSeparator(path);
+			if (dirs.containsKey(dir) && !module.equals(dirs.get(dir))) {
+				// Directories may hold several modules, e.g. test modules.
+				ambiguous.add(dir);
+			}
+			dirs.put(dir, module);
+			String info = new String(Files.readAllBytes(new File(root, path).toPath()), Charset.forName("ISO-8859-1"));
+			Matcher matcher = FILES_PATTERN.matcher(info);
+			while (matcher.find()) {
+				String file = FilenameUtils.normalize((dir.isEmpty() ? "" : dir+"/")+matcher.group(1), true);
+				if (file != null) {
+					declared.put(file, module);
+				}
+			}
+		}
+		dirs.keySet().removeAll(ambiguous);
+
+		Map<String, String> modules = new HashMap<String, String>();
+		for (String path: paths) {
+			String module = declared.get(path);
+			for (String dir = FilenameUtils.getPathNoEndSeparator(path); module == null && !dir.isEmpty(); dir = FilenameUtils.getPathNoEndSeparator(dir)) {
+				module = dirs.get(dir);
+			}
+			if (module != null) {
+				modules.put(path, module);
+			}
+		}
+		return modules;
+	}
+
+	/**
+	 * Build the list of tests out of class declarations:
+	 * tests are concrete classes that have a group and that extend one of Simpletest's base classes.
+	 */
+	public static Collection<DrupalTest> resolve(Collection<List<Declaration>> declarations) {
+		Map<String, String> parents = new HashMap<String, String>();
+		for (List<Declaration> list: declarations) {
+			for (Declaration declaration: list) {
+				parents.put(declaration.className.toLowerCase(), declaration.parent);
+			}
+		}
+		Collection<DrupalTest> tests = new ArrayList<DrupalTest>();
+		for (List<Declaration> list: declarations) {
+			for (Declaration declaration: list) {
+				if (!declaration.isAbstract && declaration.group != null && extendsBaseClass(declaration, parents)) {
+					tests.add(new DrupalTest(declaration.group, declaration.className));
+				}
+			}
+		}
+		return tests;
+	}
+
+	private static boolean extendsBaseClass(Declaration declaration, Map<String, String> parents) {
+		Set<String> visited = new HashSet<String>();
+		String parent = declaration.parent;
+		while (parent != null && visited.add(parent.toLowerCase())) {
+			if (BASE_CLASSES.contains(parent)) {
+				return true;
+			}
+			parent = parents.get(parent.toLowerCase());
+		}
+		return false;
+	}
+
+	/**
+	 * PHP class declaration.
+	 */
+	public static class Declaration {
+
+		public final String className;
+		public final String parent;
+		public final boolean isAbstract;
+		public final String group;
+
+		public Declaration(String className, String parent, boolean isAbstract, String group) {
+			this.className = className;
+			this.parent = parent;
+			this.isAbstract = isAbstract;
+			this.group = group;
+		}
+
+	}
+
+}
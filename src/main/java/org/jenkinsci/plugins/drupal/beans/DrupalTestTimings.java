@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2015 Fengtan<https://github.com/fengtan/>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.jenkinsci.plugins.drupal.beans;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+
+/**
+ * Durations of test classes (in seconds), as reported by previous builds.
+ *
+ * Stored as a properties file 'ClassName=seconds'.
+ *
+ * @author Fengtan https://github.com/fengtan/
+ *
+ */
+public class DrupalTestTimings {
+
+	// Estimate used when no duration is known at all.
+	private static final double DEFAULT_DURATION = 1.0;
+
+	private final File file;
+	private final Map<String, Double> durations = new HashMap<String, Double>();
+
+	public DrupalTestTimings(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Load durations from the timing store, if it exists.
+	 */
+	public void load() throws IOException {
+		if (!file.exists()) {
+			return;
+		}
+		Properties properties = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			properties.load(in);
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+		for (String className: properties.stringPropertyNames()) {
+			durations.put(className, NumberUtils.toDouble(properties.getProperty(className), DEFAULT_DURATION));
+		}
+	}
+
+	/**
+	 * Save durations into the timing store.
+	 */
+	public void save() throws IOException {
+		Properties properties = new Properties();
+		for (Map.Entry<String, Double> entry: durations.entrySet()) {
+			properties.setProperty(entry.getKey(), String.format("%.3f", entry.getValue()));
+		}
+		OutputStream out = new FileOutputStream(file);
+		try {
+			properties.store(out, "Durations of Drupal test classes, in seconds");
+		} finally {
+			IOUtils.closeQuietly(out);
+		}
+	}
+
+	/**
+	 * Record durations found in JUnit XML files of a directory.
+	 *
+	 * Returns the number of test classes updated.
+	 */
+	public int update(File logsDir) {
+		File[] files = logsDir.listFiles();
+		if (files == null) {
+			return 0;
+		}
+		int count = 0;
+		for (File file: files) {
+			if (file.isFile() && file.getName().endsWith(".xml")) {
+				try {
+					Map<String, Double> parsed = parse(file);
+					durations.putAll(parsed);
+					count += parsed.size();
+				} catch (IOException e) {
+					// Ignore unreadable files: the timing store is only a hint.
+				} catch (XMLStreamException e) {
+					// Ignore malformed files: the timing store is only a hint.
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Forget durations of test classes which no longer exist, so the timing store does not grow forever.
+	 *
+	 * Returns the number of test classes removed.
+	 */
+	public int retain(Collection<DrupalTest> tests) {
+		Set<String> classNames = new HashSet<String>();
+		for (DrupalTest test: tests) {
+			classNames.add(test.getClassName());
+		}
+		int count = durations.size();
+		durations.keySet().retainAll(classNames);
+		return count - durations.size();
+	}
+
+	/**
+	 * Sum 'time' attributes of test cases, by class name.
+	 * Fall back to the 'time' attribute of the test suite if test cases have none.
+	 */
+	private static Map<String, Double> parse(File file) throws IOException, XMLStreamException {
+		Map<String, Double> result = new HashMap<String, Double>();
+		InputStream in = new FileInputStream(file);
+		try {
+			XMLInputFactory factory = XMLInputFactory.newInstance();
+			// JUnit files come from the workspace: do not resolve DTDs or external entities.
+			factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+			factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+			XMLStreamReader reader = factory.createXMLStreamReader(in);
+			while (reader.hasNext()) {
+				if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+					continue;
+				}
+				String time = reader.getAttributeValue(null, "time");
+				if (StringUtils.isEmpty(time)) {
+					continue;
+				}
+				if ("testcase".equals(reader.getLocalName())) {
+					String className = reader.getAttributeValue(null, "classname");
+					if (StringUtils.isNotEmpty(className)) {
+						Double sum = result.get(className);
+						result.put(className, (sum == null ? 0 : sum) + NumberUtils.toDouble(time));
+					}
+				} else if ("testsuite".equals(reader.getLocalName())) {
+					String className = reader.getAttributeValue(null, "name");
+					if (StringUtils.isNotEmpty(className) && !result.containsKey(className)) {
+						result.put(className, NumberUtils.toDouble(time));
+					}
+				}
+			}
+			reader.close();
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+		return result;
+	}
+
+	/**
+	 * Estimate duration of every target.
+	 * Targets with no history are given the average duration of their group (or of all known classes).
+	 */
+	public Map<String, Double> estimate(Collection<DrupalTest> targets) {
+		Map<String, double[]> groups = new HashMap<String, double[]>();
+		double total = 0;
+		int known = 0;
+		for (DrupalTest test: targets) {
+			Double duration = durations.get(test.getClassName());
+			if (duration != null) {
+				double[] group = groups.get(test.getGroup());
+				if (group == null) {
+					group = new double[2];
+					groups.put(test.getGroup(), group);
+				}
+				group[0] += duration;
+				group[1]++;
+				total += duration;
+				known++;
+			}
+		}
+		double average = (known > 0) ? total / known : DEFAULT_DURATION;
+
+		Map<String, Double> estimates = new HashMap<String, Double>();
+		for (DrupalTest test: targets) {
+			Double duration = durations.get(test.getClassName());
+			if (duration == null) {
+				double[] group = groups.get(test.getGroup());
+				duration = (group != null) ? group[0] / group[1] : average;
+			}
+			estimates.put(test.getClassName(), duration);
+		}
+		return estimates;
+	}
+
+}
@@ -22,30 +22,34 @@ import hudson.EnvVars;
 import hudson.FilePath;
 import hudson.Launcher;
 import hudson.Launcher.ProcStarter;
+import hudson.Proc;
 import hudson.model.TaskListener;
 import hudson.model.Computer;
 import hudson.tools.ToolInstallation;
 import hudson.util.ArgumentListBuilder;
 import hudson.util.StreamTaskListener;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.collections.MapUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.output.NullOutputStream;
 import org.apache.commons.lang.StringUtils;
 import org.jenkinsci.plugins.drupal.config.DrushInstallation;
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
-import org.json.simple.JSONValue;
 
 /**
  * Invoke Drush commands.
@@ -55,18 +59,37 @@ import org.json.simple.JSONValue;
  */
 public class DrushInvocation {
 
+	// Drush executables resolved on every node, keyed by node and installation.
+	private static final Map<String, CachedExe> EXE_CACHE = new ConcurrentHashMap<String, CachedExe>();
+
+	// Resolved Drush executables expire after this delay (in milliseconds), 10 minutes by default.
+	private static final long EXE_CACHE_TTL = Long.getLong(DrushInvocation.class.getName()+".exeCacheTtl", 10 * 60 * 1000L);
+
+	// Maximum length of the comma-separated list of test classes passed to a single 'drush test-run'.
+	// Keeps the command line well below the limits of Windows (8191 characters) and most shells.
+	private static final int MAX_TARGETS_LENGTH = 4000;
+
 	protected final FilePath root;
 	protected final FilePath workspace;
 	protected final Launcher launcher;
 	protected final TaskListener listener;
 	protected final EnvVars environment;
+	protected final DrushSession session;
 	
 	public DrushInvocation(FilePath root, FilePath workspace, Launcher launcher, TaskListener listener, EnvVars environment) {
+		this(root, workspace, launcher, listener, environment, null);
+	}
+
+	/**
+	 * Results of commands that do not change the site are cached into the session, if any.
+	 */
+	public DrushInvocation(FilePath root, FilePath workspace, Launcher launcher, TaskListener listener, EnvVars environment, DrushSession session) {
 		this.root = root;
 		this.workspace = workspace;
 		this.launcher = launcher;
 		this.listener = listener;
 		this.environment = environment;
+		this.session = session;
 	}
 
 	/**
@@ -77,9 +100,45 @@ public class DrushInvocation {
 	}
 
 	/**
-	 * Get Drush executable.
+	 * Get Drush executable, from the session if possible.
 	 */
 	protected String getDrushExe() {
+		if (session == null) {
+			return getNodeDrushExe();
+		}
+		String exe = session.getDrushExe();
+		if (exe == null) {
+			exe = getNodeDrushExe();
+			session.setDrushExe(exe);
+		}
+		return exe;
+	}
+
+	/**
+	 * Get Drush executable from the cache of the current node, if it has not expired.
+	 */
+	protected String getNodeDrushExe() {
+		DrushInstallation installation = getDrushInstallation();
+		Computer computer = Computer.currentComputer();
+		String key = ((computer == null) ? "" : computer.getName())+"\n"+((installation == null) ? "" : installation.getName()+"\n"+environment.expand(installation.getHome()));
+		CachedExe cached = EXE_CACHE.get(key);
+		if (cached != null && cached.expires > System.currentTimeMillis()) {
+			return cached.exe;
+		}
+		String exe = resolveDrushExe();
+		if (exe == null) {
+			// Do not cache errors.
+			return launcher.isUnix() ? "drush" : "drush.bat";
+		}
+		EXE_CACHE.put(key, new CachedExe(exe, System.currentTimeMillis() + EXE_CACHE_TTL));
+		return exe;
+	}
+
+	/**
+	 * Resolve Drush executable.
+	 * Return null if the executable could not be resolved due to an error.
+	 */
+	protected String resolveDrushExe() {
     	DrushInstallation installation = getDrushInstallation();
     	String defaultExe = launcher.isUnix() ? "drush" : "drush.bat";
         if (installation == null) {
@@ -97,10 +156,10 @@ public class DrushInvocation {
 	        return exe;
 		} catch (IOException e) {
 			listener.getLogger().println("[DRUPAL] Fall back to '"+defaultExe+"' due to error: "+e.getMessage());
-			return defaultExe;
+			return null;
 		} catch (InterruptedException e) {
 			listener.getLogger().println("[DRUPAL] Fall back to '"+defaultExe+"' due to error: "+e.getMessage());
-			return defaultExe;
+			return null;
 		}     
     }
 	
@@ -136,13 +195,113 @@ public class DrushInvocation {
 		return true;
 	}
 
+	/**
+	 * Execute a Drush command and parse its JSON output while it is running.
+	 * Return false if the output is not valid JSON.
+	 */
+	protected boolean executeJson(ArgumentListBuilder args, DrushJsonParser parser) throws IOException, InterruptedException {
+		// Do not output stderr since this breaks the JSON formatting on stdout.
+		Proc proc = launcher.launch().pwd(workspace).cmds(args).readStdout().stderr(NullOutputStream.NULL_OUTPUT_STREAM).start();
+		InputStream stdout = proc.getStdout();
+		try {
+			return parser.parse(new BufferedReader(new InputStreamReader(stdout, "UTF-8")));
+		} finally {
+			// Consume whatever the parser did not read so the process does not block.
+			IOUtils.copy(stdout, NullOutputStream.NULL_OUTPUT_STREAM);
+			IOUtils.closeQuietly(stdout);
+			proc.join();
+		}
+	}
+
+	/**
+	 * Execute a Drush command, optionally feeding its standard input, and check its exit code.
+	 */
+	protected boolean executeWithInput(ArgumentListBuilder args, InputStream stdin) throws IOException, InterruptedException {
+		ProcStarter starter = launcher.launch().pwd(workspace).cmds(args).stdout(listener);
+		if (stdin != null) {
+			starter.stdin(stdin);
+		}
+		return starter.join() == 0;
+	}
+
+	/**
+	 * Execute a Drush command that changes the state of the site, and forget cached results.
+	 */
+	protected boolean executeAndInvalidate(ArgumentListBuilder args) throws IOException, InterruptedException {
+		try {
+			return execute(args);
+		} finally {
+			invalidate();
+		}
+	}
+
+	/**
+	 * Forget cached results and stop the Drush worker after the site was changed by another process:
+	 * the worker would otherwise keep serving the code and database it bootstrapped.
+	 */
+	protected void invalidate() {
+		if (session != null) {
+			session.invalidate(root.getRemote());
+			session.stopWorker(root.getRemote());
+		}
+	}
+
+	/**
+	 * Run a command through the Drush worker of the Drupal root, if worker mode is enabled.
+	 * 
+	 * Return null if the command should rather run in a new Drush process.
+	 */
+	protected DrushWorker.Response executeInWorker(String command, List<String> arguments, Map<String, String> options) throws InterruptedException {
+		if (!DrushWorker.ENABLED || session == null) {
+			return null;
+		}
+		DrushWorker worker;
+		synchronized (session) {
+			worker = session.getWorker(root.getRemote());
+			if (worker == null) {
+				worker = new DrushWorker(getArgumentListBuilder(), workspace, launcher, listener);
+				session.setWorker(root.getRemote(), worker);
+			}
+		}
+		try {
+			return worker.call(command, arguments, options);
+		} catch (DrushWorker.CrashException e) {
+			// The command may have been partially applied: report a failure rather than running it again.
+			listener.getLogger().println("[DRUPAL] "+e.getMessage()+": "+e.getCause().getMessage());
+			return new DrushWorker.Response(false, "", "");
+		} catch (IOException e) {
+			listener.getLogger().println("[DRUPAL] Drush worker failed, falling back to a new Drush process: "+e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Run a command that changes the state of the site through the Drush worker, if worker mode is enabled.
+	 * The worker is stopped afterwards: its static caches (module list, registry) no longer match the site.
+	 * 
+	 * Return null if the command should rather run in a new Drush process.
+	 */
+	protected Boolean executeInWorkerAndInvalidate(String command, String... arguments) throws InterruptedException {
+		DrushWorker.Response response = executeInWorker(command, Arrays.asList(arguments), Collections.<String, String>emptyMap());
+		if (response == null) {
+			return null;
+		}
+		listener.getLogger().print(response.getOutput());
+		invalidate();
+		return response.isOk();
+	}
+
 	/**
 	 * Run update.php.
 	 */
 	public boolean upDb() throws IOException, InterruptedException {
+		Boolean result = executeInWorkerAndInvalidate("updatedb");
+		if (result != null) {
+			return result;
+		}
 		ArgumentListBuilder args = getArgumentListBuilder();
 		args.add("updatedb");
-		return execute(args);
+		return executeAndInvalidate(args);
 	}
 	
 	/**
@@ -153,7 +312,7 @@ public class DrushInvocation {
 		args.add("make");
 		args.add(makefile.getAbsolutePath());
 		args.add(root.getRemote());
-		return execute(args);
+		return executeAndInvalidate(args);
 	}
 	
 	/**
@@ -164,7 +323,7 @@ public class DrushInvocation {
 		args.add("site-install");
 		args.add(profile);
 		args.add("--db-url="+db);
-		return execute(args);
+		return executeAndInvalidate(args);
 	}
 	
 	/**
@@ -176,22 +335,95 @@ public class DrushInvocation {
 		if (StringUtils.isNotEmpty(destination)) {
 			args.add("--destination="+destination);
 		}
-		return execute(args);
+		return executeAndInvalidate(args);
+	}
+	
+	/**
+	 * Dump the database into a file.
+	 */
+	public boolean sqlDump(FilePath resultFile) throws IOException, InterruptedException {
+		ArgumentListBuilder args = getArgumentListBuilder();
+		args.add("sql-dump").add("--result-file="+resultFile.getRemote());
+		return executeWithInput(args, null);
+	}
+
+	/**
+	 * Drop all tables of the database.
+	 */
+	public boolean sqlDrop() throws IOException, InterruptedException {
+		ArgumentListBuilder args = getArgumentListBuilder();
+		args.add("sql-drop");
+		try {
+			return executeWithInput(args, null);
+		} finally {
+			invalidate();
+		}
+	}
+
+	/**
+	 * Run SQL statements read from a stream.
+	 */
+	public boolean sqlImport(InputStream sql) throws IOException, InterruptedException {
+		ArgumentListBuilder args = getArgumentListBuilder();
+		args.add("sql-cli");
+		try {
+			return executeWithInput(args, sql);
+		} finally {
+			invalidate();
+		}
 	}
 	
 	/**
 	 * Enable extensions/modules.
 	 */
 	public boolean enable(String extensions) throws IOException, InterruptedException {
+		Boolean result = executeInWorkerAndInvalidate("pm-enable", extensions);
+		if (result != null) {
+			return result;
+		}
 		ArgumentListBuilder args = getArgumentListBuilder();
 		args.add("pm-enable").add(extensions);
-		return execute(args);
+		return executeAndInvalidate(args);
 	}
 	
 	/**
 	 * Get a map of projects installed on Drupal, keyed by machine name.
+	 * 
+	 * If a session is available, the full list of projects is fetched once and filtered locally.
 	 */
 	public Map<String, DrupalExtension> getProjects(boolean modulesOnly, boolean enabledOnly) {
+		if (session == null) {
+			return listProjects(modulesOnly, enabledOnly);
+		}
+		Map<String, DrupalExtension> all = session.getProjects(root.getRemote());
+		if (all == null) {
+			listener.getLogger().println("[DRUPAL] Drush cache miss: pm-list");
+			DrushProbe probe = probe(false);
+			if (probe != null) {
+				all = probe.getProjects();
+			} else {
+				// The probe requires a fully bootstrapped site: fall back to pm-list.
+				all = listProjects(false, false);
+				if (!all.isEmpty()) {
+					session.setProjects(root.getRemote(), all);
+				}
+			}
+		} else {
+			listener.getLogger().println("[DRUPAL] Drush cache hit: pm-list");
+		}
+		Map<String, DrupalExtension> projects = new HashMap<String, DrupalExtension>();
+		for (DrupalExtension project: all.values()) {
+			if ((!modulesOnly || "module".equalsIgnoreCase(project.getType())) && (!enabledOnly || "enabled".equalsIgnoreCase(project.getStatus()))) {
+				projects.put(project.getName(), project);
+			}
+		}
+		return projects;
+	}
+
+	/**
+	 * Run 'drush pm-list'.
+	 */
+	protected Map<String, DrupalExtension> listProjects(boolean modulesOnly, boolean enabledOnly) {
 		ArgumentListBuilder args = getArgumentListBuilder();
 		args.add("pm-list").add("--pipe").add("--format=json");
 		if (modulesOnly) {
@@ -201,9 +433,23 @@ public class DrushInvocation {
 			args.add("--status=enabled");
 		}
 		
-		OutputStream json = new ByteArrayOutputStream();
+		Map<String, String> options = new HashMap<String, String>();
+		if (modulesOnly) {
+			options.put("type", "module");
+		}
+		if (enabledOnly) {
+			options.put("status", "enabled");
+		}
+		
+		DrushJsonParser parser = new DrushJsonParser(new String[0], null, null);
+		boolean parsed;
 		try {
-			execute(args, new StreamTaskListener(json));
+			DrushWorker.Response response = executeInWorker("pm-list", Collections.<String>emptyList(), options);
+			if (response != null) {
+				parsed = parser.parse(new StringReader(response.getResult()));
+			} else {
+				parsed = executeJson(args, parser);
+			}
 		} catch (IOException e1) {
 			listener.getLogger().println(e1);
 			return MapUtils.EMPTY_MAP;
@@ -212,24 +458,11 @@ public class DrushInvocation {
 			return MapUtils.EMPTY_MAP;
 		}
 		
-		Map<String, DrupalExtension> projects = new HashMap<String, DrupalExtension>();
-		JSONObject entries = (JSONObject) JSONValue.parse(json.toString());
-		if (entries == null) {
+		if (!parsed || !parser.hasExtensions()) {
 			listener.getLogger().println("[DRUPAL] Could not list available projects");
 			return MapUtils.EMPTY_MAP;
 		}
-		for (Object name: entries.keySet()) {
-			JSONObject entry = (JSONObject) entries.get(name);
-			DrupalExtension project = new DrupalExtension(
-				Objects.toString(name, ""),
-				Objects.toString(entry.get("type"), ""),
-				Objects.toString(entry.get("status"), ""),
-				Objects.toString(entry.get("version"), "")
-			);
-			projects.put(name.toString(), project);
-		}
-		
-		return projects;
+		return parser.getProjects();
 	}
 	
 	/**
@@ -241,14 +474,64 @@ public class DrushInvocation {
 	
 	/**
 	 * Return true if the site is already installed, false otherwise.
+	 * 
+	 * The database configured in settings.php is checked directly when possible, otherwise Drupal gets bootstrapped.
 	 */
 	public boolean status() {
+		Boolean installed = (session == null) ? null : session.getStatus(root.getRemote());
+		if (installed == null) {
+			// Try to answer without bootstrapping Drupal first.
+			installed = probeStatus();
+			if (installed != null) {
+				listener.getLogger().println("[DRUPAL] Site status determined from settings.php: "+(installed ? "installed" : "not installed"));
+			} else if (session == null) {
+				return runStatus();
+			} else {
+				listener.getLogger().println("[DRUPAL] Drush cache miss: status");
+				DrushProbe probe = probe(false);
+				installed = (probe != null) ? probe.isInstalled() : runStatus();
+			}
+			if (session != null) {
+				session.setStatus(root.getRemote(), installed);
+			}
+		} else {
+			listener.getLogger().println("[DRUPAL] Drush cache hit: status");
+		}
+		return installed;
+	}
+
+	/**
+	 * Find out whether the site is installed without bootstrapping Drupal, on the node which hosts it.
+	 * Return null if it could not be determined.
+	 */
+	private Boolean probeStatus() {
+		try {
+			return SiteStatusProbe.isInstalled(workspace.child(root.getRemote()));
+		} catch (IOException e) {
+			listener.getLogger().println("[DRUPAL] Unable to probe site status: "+e.getMessage());
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	/**
+	 * Run 'drush status'.
+	 */
+	protected boolean runStatus() {
 		ArgumentListBuilder args = getArgumentListBuilder();
 		args.add("status").add("--format=json");
 
-		OutputStream json = new ByteArrayOutputStream();
+		DrushJsonParser parser = new DrushJsonParser(null, null, new String[0]);
+		boolean parsed;
 		try {
-			execute(args, new StreamTaskListener(json));
+			DrushWorker.Response response = executeInWorker("core-status", Collections.<String>emptyList(), Collections.<String, String>emptyMap());
+			if (response != null) {
+				parsed = parser.parse(new StringReader(response.getResult()));
+			} else {
+				parsed = executeJson(args, parser);
+			}
 		} catch (IOException e1) {
 			listener.getLogger().println(e1);
 			return false;
@@ -257,25 +540,90 @@ public class DrushInvocation {
 			return false;
 		}
 
-		JSONObject values = (JSONObject) JSONValue.parse(json.toString());
-		if (values == null) {
+		if (!parsed || !parser.hasStatus()) {
 			listener.getLogger().println("[DRUPAL] Could not determine the site status.");
 			return false;
 		}
 		
-		return values.containsKey("db-name");
+		return parser.hasDbName();
 	}
 	
+	/**
+	 * Bootstrap Drupal once to get the status of the site, its extensions and, optionally, its tests.
+	 * 
+	 * Results are stored into the session, if any.
+	 * Return null if the site could not be bootstrapped.
+	 */
+	public DrushProbe probe(boolean withTests) {
+		String code;
+		try {
+			code = IOUtils.toString(DrushInvocation.class.getResourceAsStream("probe.php"), "UTF-8");
+		} catch (IOException e) {
+			listener.getLogger().println(e);
+			return null;
+		}
+		ArgumentListBuilder args = getArgumentListBuilder();
+		args.add("php-eval").add("$tests = "+(withTests ? "TRUE" : "FALSE")+";\n"+code);
+
+		DrushJsonParser parser = new DrushJsonParser(new String[] {"extensions"}, new String[] {"tests"}, new String[] {"status"});
+		boolean parsed;
+		try {
+			parsed = executeJson(args, parser);
+		} catch (IOException e1) {
+			listener.getLogger().println(e1);
+			return null;
+		} catch (InterruptedException e2) {
+			listener.getLogger().println(e2);
+			return null;
+		}
+
+		if (!parsed || !parser.hasExtensions()) {
+			listener.getLogger().println("[DRUPAL] Could not probe the site");
+			return null;
+		}
+
+		boolean installed = parser.hasDbName();
+		Map<String, DrupalExtension> projects = parser.getProjects();
+		Collection<DrupalTest> tests = parser.getTests();
+
+		if (session != null) {
+			session.setStatus(root.getRemote(), installed);
+			session.setProjects(root.getRemote(), projects);
+			if (tests != null) {
+				session.setTests(root.getRemote(), tests);
+			}
+		}
+		return new DrushProbe(installed, projects, tests);
+	}
+
 	/**
 	 * Get a list of test classes available.
 	 */
 	public Collection<DrupalTest> getTests() {
+		if (session == null) {
+			return listTests();
+		}
+		Collection<DrupalTest> tests = session.getTests(root.getRemote());
+		if (tests != null) {
+			listener.getLogger().println("[DRUPAL] Drush cache hit: test list");
+			return tests;
+		}
+		listener.getLogger().println("[DRUPAL] Drush cache miss: test list");
+		DrushProbe probe = probe(true);
+		return (probe != null && probe.getTests() != null) ? probe.getTests() : listTests();
+	}
+
+	/**
+	 * Run 'drush test-run' to list test classes.
+	 */
+	protected Collection<DrupalTest> listTests() {
 		ArgumentListBuilder args = getArgumentListBuilder();
 		args.add("test-run").add("--format=json");
 
-		OutputStream json = new ByteArrayOutputStream();
+		DrushJsonParser parser = new DrushJsonParser(null, new String[0], null);
+		boolean parsed;
 		try {
-			execute(args, new StreamTaskListener(json));
+			parsed = executeJson(args, parser);
 		} catch (IOException e1) {
 			listener.getLogger().println(e1);
 			return CollectionUtils.EMPTY_COLLECTION;
@@ -284,36 +632,58 @@ public class DrushInvocation {
 			return CollectionUtils.EMPTY_COLLECTION;
 		}
 		
-		Collection<DrupalTest> tests = new HashSet<DrupalTest>();
-		JSONArray entries = (JSONArray) JSONValue.parse(json.toString());
-		if (entries == null) {
+		if (!parsed || parser.getTests() == null) {
 			listener.getLogger().println("[DRUPAL] Could not list available tests");
 			return CollectionUtils.EMPTY_COLLECTION;
 		}
-		for (Object entry: entries) {
-			JSONObject test = (JSONObject) entry;
-			tests.add(new DrupalTest(test.get("group").toString(), test.get("class").toString()));
-		}
-		
-		return tests;
+		return parser.getTests();
 	}
 	
 	/**
 	 * Run tests.
+	 * 
+	 * Long lists of targets are split into several consecutive 'drush test-run' commands.
 	 */
 	public boolean testRun(File outputDir, String uri, Collection<String> targets) throws IOException, InterruptedException {
-		ArgumentListBuilder args = getArgumentListBuilder();
-		args.add("test-run");
-		args.add("--xml="+outputDir.getAbsolutePath());
-		if (StringUtils.isNotEmpty(uri)) {
-			args.add("--uri="+uri);
+		boolean result = true;
+		for (Collection<String> chunk: chunk(targets, MAX_TARGETS_LENGTH)) {
+			ArgumentListBuilder args = getArgumentListBuilder();
+			args.add("test-run");
+			args.add("--xml="+outputDir.getAbsolutePath());
+			if (StringUtils.isNotEmpty(uri)) {
+				args.add("--uri="+uri);
+			}
+			args.add(StringUtils.join(chunk, ","));
+			result &= execute(args);
 		}
-		args.add(StringUtils.join(targets, ","));
-		return execute(args);
+		return result;
+	}
+
+	/**
+	 * Split a list of targets into chunks whose comma-separated length does not exceed maxLength.
+	 */
+	protected static List<Collection<String>> chunk(Collection<String> targets, int maxLength) {
+		List<Collection<String>> chunks = new ArrayList<Collection<String>>();
+		Collection<String> chunk = new ArrayList<String>();
+		int length = 0;
+		for (String target: targets) {
+			if (!chunk.isEmpty() && length + target.length() + 1 > maxLength) {
+				chunks.add(chunk);
+				chunk = new ArrayList<String>();
+				length = 0;
+			}
+			chunk.add(target);
+			length += target.length() + 1;
+		}
+		if (!chunk.isEmpty()) {
+			chunks.add(chunk);
+		}
+		return chunks;
 	}
 	
 	/**
 	 * Run a code review.
+	 * Return false if Coder is not usable or 'drush coder-review' exits with an error.
 	 */
 	public boolean coderReview(File outputDir, Collection<String> reviews, final Collection<String> projectNames, boolean ignoresPass) throws IOException, InterruptedException {	
 		// Make sure Coder is enabled.
@@ -364,8 +734,34 @@ public class DrushInvocation {
 		}
 
 		// Run command.
-    	File outputFile = new File(outputDir, "coder_review.xml");
-    	return execute(args, new StreamTaskListener(outputFile));
+		// Do not output stderr since this breaks the XML formatting on stdout.
+		File outputFile = new File(outputDir, CheckstyleReport.REPORT_FILE);
+		StreamTaskListener output = new StreamTaskListener(outputFile);
+		try {
+			int exitCode = launcher.launch().pwd(workspace).cmds(args).stdout(output).stderr(NullOutputStream.NULL_OUTPUT_STREAM).join();
+			if (exitCode != 0) {
+				listener.getLogger().println("[DRUPAL] Code review failed with exit code "+exitCode);
+				return false;
+			}
+			return true;
+		} finally {
+			output.close();
+		}
+	}
+
+	/**
+	 * Drush executable resolved on a node.
+	 */
+	private static class CachedExe {
+
+		private final String exe;
+		private final long expires;
+
+		private CachedExe(String exe, long expires) {
+			this.exe = exe;
+			this.expires = expires;
+		}
+
 	}
 
 }
@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2015 Fengtan<https://github.com/fengtan/>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.jenkinsci.plugins.drupal.beans;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Event-based parser of Drush JSON output.
+ * 
+ * Extensions and tests are built while the output is being read, so the output is never held in memory as a whole.
+ * Each kind of data is looked up at a given path of the JSON document, or ignored if its path is null:
+ * e.g. extensions are at the root of 'drush pm-list --format=json' and under "extensions" for the site probe.
+ *
+ * @author Fengtan https://github.com/fengtan/
+ *
+ */
+public class DrushJsonParser implements ContentHandler {
+
+	// Marker for elements of arrays in paths.
+	private static final String ARRAY = "[]";
+
+	private final List<String> extensionsPath;
+	private final List<String> testsPath;
+	private final List<String> statusPath;
+
+	private final List<String> path = new ArrayList<String>();
+	private final Map<String, String> record = new HashMap<String, String>();
+
+	private boolean extensionsFound = false;
+	private boolean statusFound = false;
+	private boolean dbName = false;
+	private final Map<String, DrupalExtension> projects = new HashMap<String, DrupalExtension>();
+	private Collection<DrupalTest> tests = null;
+
+	/**
+	 * @param extensionsPath Path of the object listing extensions keyed by name, or null.
+	 * @param testsPath Path of the array listing tests, or null.
+	 * @param statusPath Path of the status object, or null.
+	 */
+	public DrushJsonParser(String[] extensionsPath, String[] testsPath, String[] statusPath) {
+		this.extensionsPath = (extensionsPath == null) ? null : Arrays.asList(extensionsPath);
+		this.testsPath = (testsPath == null) ? null : Arrays.asList(testsPath);
+		this.statusPath = (statusPath == null) ? null : Arrays.asList(statusPath);
+	}
+
+	/**
+	 * Parse a JSON document.
+	 * Return false if the document is not valid JSON.
+	 */
+	public boolean parse(Reader reader) throws IOException {
+		try {
+			new JSONParser().parse(reader, this);
+			return true;
+		} catch (ParseException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Return true if the object listing extensions was found.
+	 */
+	public boolean hasExtensions() {
+		return extensionsFound;
+	}
+
+	/**
+	 * Return true if the status object was found.
+	 */
+	public boolean hasStatus() {
+		return statusFound;
+	}
+
+	/**
+	 * Return true if the status object includes a database name.
+	 */
+	public boolean hasDbName() {
+		return dbName;
+	}
+
+	/**
+	 * Get extensions keyed by machine name.
+	 */
+	public Map<String, DrupalExtension> getProjects() {
+		return projects;
+	}
+
+	/**
+	 * Get tests, or null if the array listing tests was not found.
+	 */
+	public Collection<DrupalTest> getTests() {
+		return tests;
+	}
+
+	/**
+	 * Return true if the current path is the given path followed by the given number of elements.
+	 */
+	private boolean isUnder(List<String> prefix, int depth) {
+		return prefix != null && path.size() == prefix.size() + depth && path.subList(0, prefix.size()).equals(prefix);
+	}
+
+	@Override
+	public void startJSON() {
+	}
+
+	@Override
+	public void endJSON() {
+	}
+
+	@Override
+	public boolean startObject() {
+		record.clear();
+		if (isUnder(extensionsPath, 0)) {
+			extensionsFound = true;
+		}
+		if (isUnder(statusPath, 0)) {
+			statusFound = true;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean endObject() {
+		if (isUnder(extensionsPath, 1)) {
+			String name = path.get(path.size() - 1);
+			projects.put(name, new DrupalExtension(
+				name,
+				Objects.toString(record.get("type"), ""),
+				Objects.toString(record.get("status"), ""),
+				Objects.toString(record.get("version"), ""),
+				Objects.toString(record.get("schema"), "")
+			));
+		} else if (isUnder(testsPath, 1) && record.containsKey("class")) {
+			tests.add(new DrupalTest(Objects.toString(record.get("group"), ""), record.get("class")));
+		}
+		record.clear();
+		return true;
+	}
+
+	@Override
+	public boolean startObjectEntry(String key) {
+		path.add(key);
+		if (isUnder(statusPath, 1) && "db-name".equals(key)) {
+			dbName = true;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean endObjectEntry() {
+		path.remove(path.size() - 1);
+		return true;
+	}
+
+	@Override
+	public boolean startArray() {
+		if (isUnder(testsPath, 0)) {
+			tests = new HashSet<DrupalTest>();
+		}
+		path.add(ARRAY);
+		return true;
+	}
+
+	@Override
+	public boolean endArray() {
+		path.remove(path.size() - 1);
+		return true;
+	}
+
+	@Override
+	public boolean primitive(Object value) {
+		if (isUnder(extensionsPath, 2) || isUnder(testsPath, 2)) {
+			record.put(path.get(path.size() - 1), Objects.toString(value, ""));
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2015 Fengtan<https://github.com/fengtan/>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.jenkinsci.plugins.drupal.beans;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Status, extensions and tests of a Drupal site, as reported by a single Drupal bootstrap.
+ * 
+ * @author Fengtan https://github.com/fengtan/
+ *
+ */
+public class DrushProbe {
+
+	private boolean installed;
+	private Map<String, DrupalExtension> projects;
+	private Collection<DrupalTest> tests;
+	
+	public DrushProbe(boolean installed, Map<String, DrupalExtension> projects, Collection<DrupalTest> tests) {
+		this.installed = installed;
+		this.projects = projects;
+		this.tests = tests;
+	}
+	
+	public boolean isInstalled() {
+		return installed;
+	}
+	
+	/**
+	 * Get all extensions, keyed by machine name.
+	 */
+	public Map<String, DrupalExtension> getProjects() {
+		return projects;
+	}
+	
+	/**
+	 * Get tests, or null if they were not requested or if Simpletest is not enabled.
+	 */
+	public Collection<DrupalTest> getTests() {
+		return tests;
+	}
+	
+}
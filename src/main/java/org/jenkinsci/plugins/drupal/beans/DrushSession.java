@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2015 Fengtan<https://github.com/fengtan/>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.jenkinsci.plugins.drupal.beans;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.jenkinsci.plugins.drupal.projects.DrupalBuild;
+
+/**
+ * Results of Drush commands shared by all builders of a build.
+ * 
+ * Results are cached per Drupal root and invalidated by commands that change the state of the site.
+ *
+ * @author Fengtan https://github.com/fengtan/
+ *
+ */
+public class DrushSession {
+
+	// Sessions of builds that are not Drupal builds (e.g. Freestyle builds).
+	private static final Map<Run<?,?>, DrushSession> SESSIONS = new WeakHashMap<Run<?,?>, DrushSession>();
+
+	private String drushExe;
+	private final Map<String, Map<String, DrupalExtension>> projects = new HashMap<String, Map<String, DrupalExtension>>();
+	private final Map<String, Boolean> status = new HashMap<String, Boolean>();
+	private final Map<String, Collection<DrupalTest>> tests = new HashMap<String, Collection<DrupalTest>>();
+	private final Map<String, DrushWorker> workers = new HashMap<String, DrushWorker>();
+	// Files and directories (possibly on an agent) deleted or restored once the build is completed, e.g. ephemeral databases.
+	private final List<FilePath[]> temporaryFiles = new ArrayList<FilePath[]>();
+
+	/**
+	 * Get the session of a build.
+	 */
+	public static DrushSession forBuild(Run<?,?> build) {
+		if (build instanceof DrupalBuild) {
+			return ((DrupalBuild) build).getDrushSession();
+		}
+		synchronized (SESSIONS) {
+			DrushSession session = SESSIONS.get(build);
+			if (session == null) {
+				session = new DrushSession();
+				SESSIONS.put(build, session);
+			}
+			return session;
+		}
+	}
+
+	/**
+	 * Release resources held by the session of a build.
+	 */
+	public static void release(Run<?,?> build) {
+		DrushSession session;
+		if (build instanceof DrupalBuild) {
+			session = ((DrupalBuild) build).getDrushSession();
+		} else {
+			synchronized (SESSIONS) {
+				session = SESSIONS.remove(build);
+			}
+		}
+		if (session != null) {
+			session.close();
+		}
+	}
+
+	public synchronized String getDrushExe() {
+		return drushExe;
+	}
+
+	public synchronized void setDrushExe(String drushExe) {
+		this.drushExe = drushExe;
+	}
+
+	/**
+	 * Get all extensions of a Drupal root, or null if unknown.
+	 */
+	public synchronized Map<String, DrupalExtension> getProjects(String root) {
+		return projects.get(root);
+	}
+
+	public synchronized void setProjects(String root, Map<String, DrupalExtension> extensions) {
+		projects.put(root, extensions);
+	}
+
+	/**
+	 * Get status of a Drupal root, or null if unknown.
+	 */
+	public synchronized Boolean getStatus(String root) {
+		return status.get(root);
+	}
+
+	public synchronized void setStatus(String root, boolean installed) {
+		status.put(root, installed);
+	}
+
+	/**
+	 * Get tests of a Drupal root, or null if unknown.
+	 */
+	public synchronized Collection<DrupalTest> getTests(String root) {
+		return tests.get(root);
+	}
+
+	public synchronized void setTests(String root, Collection<DrupalTest> list) {
+		tests.put(root, list);
+	}
+
+	/**
+	 * Get the Drush worker of a Drupal root, or null if none was started.
+	 */
+	public synchronized DrushWorker getWorker(String root) {
+		return workers.get(root);
+	}
+
+	public synchronized void setWorker(String root, DrushWorker worker) {
+		workers.put(root, worker);
+	}
+
+	/**
+	 * Stop the Drush worker of a Drupal root, e.g. because the site it bootstrapped was replaced.
+	 * A new worker is started by the next command.
+	 */
+	public synchronized void stopWorker(String root) {
+		DrushWorker worker = workers.remove(root);
+		if (worker != null) {
+			worker.close();
+		}
+	}
+
+	/**
+	 * Delete a file or a directory once the build is completed.
+	 */
+	public synchronized void deleteOnClose(FilePath file) {
+		temporaryFiles.add(new FilePath[] {file, null});
+	}
+
+	/**
+	 * Replace a file or a directory with its backup once the build is completed.
+	 */
+	public synchronized void restoreOnClose(FilePath file, FilePath backup) {
+		temporaryFiles.add(new FilePath[] {file, backup});
+	}
+
+	/**
+	 * Stop Drush workers, delete temporary files and restore backups, latest first.
+	 */
+	public synchronized void close() {
+		for (DrushWorker worker: workers.values()) {
+			worker.close();
+		}
+		workers.clear();
+		for (int i = temporaryFiles.size() - 1; i >= 0; i--) {
+			FilePath file = temporaryFiles.get(i)[0];
+			FilePath backup = temporaryFiles.get(i)[1];
+			try {
+				// Drupal makes site directories read-only.
+				FilePath parent = file.getParent();
+				int mode = parent.mode();
+				if (mode != -1 && (mode & 0200) == 0) {
+					parent.chmod(mode | 0200);
+				}
+				// Symbolic links are deleted rather than their target.
+				file.deleteRecursive();
+				if (backup != null) {
+					backup.renameTo(file);
+				}
+			} catch (IOException e) {
+				// Temporary files are deleted on a best-effort basis.
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		temporaryFiles.clear();
+	}
+
+	/**
+	 * Forget everything known about a Drupal root.
+	 */
+	public synchronized void invalidate(String root) {
+		projects.remove(root);
+		status.remove(root);
+		tests.remove(root);
+	}
+
+	/**
+	 * Release sessions when builds complete.
+	 */
+	@Extension
+	public static class ReleaseListener extends RunListener<Run<?,?>> {
+
+		@Override
+		public void onCompleted(Run<?,?> build, TaskListener listener) {
+			release(build);
+		}
+
+	}
+
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2015 Fengtan<https://github.com/fengtan/>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.jenkinsci.plugins.drupal.beans;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.model.TaskListener;
+import hudson.util.ArgumentListBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import org.apache.commons.io.IOUtils;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+/**
+ * Long-lived Drush process that runs several commands with a single PHP startup and Drupal bootstrap.
+ * 
+ * Commands and results are exchanged over stdin/stdout as length-prefixed JSON frames (see worker.php).
+ * Enabled with -Dorg.jenkinsci.plugins.drupal.beans.DrushWorker.enabled=true
+ *
+ * @author Fengtan https://github.com/fengtan/
+ *
+ */
+public class DrushWorker {
+
+	public static final boolean ENABLED = Boolean.getBoolean(DrushWorker.class.getName()+".enabled");
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// Commands which do not change the state of the site, and may thus safely run again if the worker crashed.
+	private static final Set<String> READ_ONLY = new HashSet<String>(Arrays.asList("pm-list", "core-status"));
+
+	private final ArgumentListBuilder args;
+	private final FilePath workspace;
+	private final Launcher launcher;
+	private final TaskListener listener;
+
+	private Proc proc;
+	private DataInputStream stdout;
+	private OutputStream stdin;
+
+	/**
+	 * @param args Default Drush options (executable, --root, etc).
+	 */
+	public DrushWorker(ArgumentListBuilder args, FilePath workspace, Launcher launcher, TaskListener listener) {
+		this.args = args;
+		this.workspace = workspace;
+		this.launcher = launcher;
+		this.listener = listener;
+	}
+
+	/**
+	 * Start the Drush process.
+	 */
+	private void start() throws IOException, InterruptedException {
+		String code = IOUtils.toString(DrushWorker.class.getResourceAsStream("worker.php"), "UTF-8");
+		ArgumentListBuilder command = args.clone().add("php-eval").add(code);
+		listener.getLogger().println("[DRUPAL] Starting Drush worker");
+		proc = launcher.launch().pwd(workspace).cmds(command).readStdout().writeStdin().stderr(listener.getLogger()).start();
+		stdout = new DataInputStream(proc.getStdout());
+		stdin = proc.getStdin();
+	}
+
+	/**
+	 * Run a command. The worker is started if it is not running.
+	 *
+	 * If the worker crashes while running a read-only command, it is restarted once and the command is run again.
+	 * Other commands may have been partially applied and are never run again: CrashException is thrown instead.
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized Response call(String command, List<String> arguments, Map<String, String> options) throws IOException, InterruptedException {
+		JSONObject request = new JSONObject();
+		request.put("command", command);
+		JSONArray jsonArguments = new JSONArray();
+		jsonArguments.addAll(arguments);
+		request.put("arguments", jsonArguments);
+		JSONObject jsonOptions = new JSONObject();
+		jsonOptions.putAll(options);
+		request.put("options", jsonOptions);
+		byte[] frame = request.toJSONString().getBytes(UTF8);
+
+		for (int attempt = 0; ; attempt++) {
+			if (proc == null || !proc.isAlive()) {
+				start();
+			}
+			try {
+				return send(frame);
+			} catch (IOException e) {
+				close();
+				if (!READ_ONLY.contains(command)) {
+					throw new CrashException("Drush worker crashed while running "+command, e);
+				}
+				if (attempt > 0) {
+					throw e;
+				}
+				listener.getLogger().println("[DRUPAL] Drush worker crashed, restarting: "+e.getMessage());
+			}
+		}
+	}
+
+	private Response send(byte[] frame) throws IOException {
+		stdin.write((frame.length+"\n").getBytes(UTF8));
+		stdin.write(frame);
+		stdin.flush();
+
+		// Read header.
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		int b;
+		while ((b = stdout.read()) != '\n') {
+			if (b == -1) {
+				throw new EOFException("Drush worker exited");
+			}
+			header.write(b);
+		}
+		int length;
+		try {
+			length = Integer.parseInt(header.toString("UTF-8").trim());
+		} catch (NumberFormatException e) {
+			throw new IOException("Unexpected output from Drush worker: "+header.toString("UTF-8"));
+		}
+
+		// Read payload.
+		byte[] payload = new byte[length];
+		stdout.readFully(payload);
+		JSONObject response = (JSONObject) JSONValue.parse(new String(payload, UTF8));
+		if (response == null) {
+			throw new IOException("Malformed response from Drush worker");
+		}
+		return new Response(
+			Boolean.TRUE.equals(response.get("ok")),
+			Objects.toString(response.get("output"), ""),
+			Objects.toString(response.get("result"), "")
+		);
+	}
+
+	/**
+	 * Stop the Drush process.
+	 */
+	public synchronized void close() {
+		IOUtils.closeQuietly(stdin);
+		IOUtils.closeQuietly(stdout);
+		if (proc != null) {
+			try {
+				proc.kill();
+			} catch (IOException e) {
+				listener.getLogger().println(e);
+			} catch (InterruptedException e) {
+				listener.getLogger().println(e);
+			}
+		}
+		proc = null;
+	}
+
+	/**
+	 * Thrown when the worker crashed while running a command which changes the state of the site.
+	 */
+	public static class CrashException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		public CrashException(String message, Throwable cause) {
+			super(message, cause);
+		}
+
+	}
+
+	/**
+	 * Result of a command.
+	 */
+	public static class Response {
+
+		private final boolean ok;
+		private final String output;
+		private final String result;
+
+		public Response(boolean ok, String output, String result) {
+			this.ok = ok;
+			this.output = output;
+			this.result = result;
+		}
+
+		public boolean isOk() {
+			return ok;
+		}
+
+		/**
+		 * Text printed by the command.
+		 */
+		public String getOutput() {
+			return output;
+		}
+
+		/**
+		 * Value returned by the command, JSON encoded.
+		 */
+		public String getResult() {
+			return result;
+		}
+
+	}
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2015 Fengtan<https://github.com/fengtan/>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.jenkinsci.plugins.drupal.beans;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.TaskListener;
+import hudson.util.ArgumentListBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Review code using PHP_CodeSniffer and the Drupal standards shipped with Coder 8.x.
+ *
+ * Unlike 'drush coder-review', phpcs does not need a Drupal site, reviews files in parallel
+ * and caches results of files which have not changed.
+ *
+ * @author Fengtan https://github.com/fengtan/
+ *
+ */
+public class PhpcsInvocation {
+
+	private static final String STANDARDS = "Drupal,DrupalPractice";
+
+	// Same extensions as the Drupal standard recommends.
+	private static final String EXTENSIONS = "php,module,inc,install,test,profile,theme,css,info,txt,md,yml";
+
+	// phpcs exits with 1 or 2 when it finds violations, and with 3 when it fails.
+	private static final int EXIT_ERROR = 3;
+
+	protected final FilePath root;
+	protected final Launcher launcher;
+	protected final TaskListener listener;
+	protected final EnvVars environment;
+
+	public PhpcsInvocation(FilePath root, Launcher launcher, TaskListener listener, EnvVars environment) {
+		this.root = root;
+		this.launcher = launcher;
+		this.listener = listener;
+		this.environment = environment;
+	}
+
+	/**
+	 * Get phpcs executable.
+	 */
+	protected String getPhpcsExe() {
+		return launcher.isUnix() ? "phpcs" : "phpcs.bat";
+	}
+
+	/**
+	 * Review directories (relative to the Drupal root) and write a Checkstyle report.
+	 *
+	 * Results of every file are cached into cacheFile and reused as long as the file does not change.
+	 */
+	public boolean review(File outputFile, Collection<String> dirs, int parallel, File cacheFile) throws IOException, InterruptedException {
+		ArgumentListBuilder args = new ArgumentListBuilder(getPhpcsExe());
+		args.add("--standard="+STANDARDS);
+		args.add("--extensions="+EXTENSIONS);
+		args.add("--report-checkstyle="+outputFile.getAbsolutePath());
+		args.add("--parallel="+parallel);
+		args.add("--cache="+cacheFile.getAbsolutePath());
+		// Report paths relative to the Drupal root, like Coder does.
+		args.add("--basepath="+root.getRemote());
+		args.add("-q");
+		args.add(dirs);
+		int exitCode = launcher.launch().pwd(root).envs(environment).cmds(args).stdout(listener).join();
+		if (exitCode >= EXIT_ERROR) {
+			listener.getLogger().println("[DRUPAL] phpcs failed with exit code "+exitCode);
+			return false;
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2015 Fengtan<https://github.com/fengtan/>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.jenkinsci.plugins.drupal.beans;
+
+import hudson.model.Job;
+import hudson.model.TaskListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Per-job cache of code review reports, one report per project.
+ *
+ * Reports are keyed by a digest of the names and of the content of the project and of the review options,
+ * so a project only needs to be reviewed again once its code or the options change.
+ *
+ * @author Fengtan https://github.com/fengtan/
+ *
+ */
+public class ReviewCache {
+
+	// Cache directory, relative to the root directory of the job.
+	private static final String CACHE_DIR = "drupal-review-cache";
+
+	private final File dir;
+
+	public ReviewCache(File dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * Get the cache of a job.
+	 */
+	public static ReviewCache forJob(Job<?,?> job) {
+		return new ReviewCache(new File(job.getRootDir(), CACHE_DIR));
+	}
+
+	/**
+	 * Compute the key of a project: names of the projects living in its directory (e.g. views and views_ui),
+	 * content of the directory and review options.
+	 */
+	public static String getKey(Collection<String> names, File projectDir, String options) throws IOException {
+		List<String> sortedNames = new ArrayList<String>(names);
+		Collections.sort(sortedNames);
+		return CodebaseFingerprint.digest(options+"\n"+StringUtils.join(sortedNames, ",")+"\n"+CodebaseFingerprint.digestContent(projectDir));
+	}
+
+	/**
+	 * Get the report cached for a key.
+	 */
+	public File getReport(String key) {
+		return new File(dir, key+".xml");
+	}
+
+	public boolean contains(String key) {
+		return getReport(key).isFile();
+	}
+
+	/**
+	 * Split a report into the cache, one entry per project.
+	 * Projects are given as a map of directory relative to the Drupal root => key.
+	 */
+	public void store(File report, Map<String, String> projects, File rootDir, TaskListener listener) throws IOException {
+		dir.mkdirs();
+		Map<String, File> outputs = new HashMap<String, File>();
+		for (Map.Entry<String, String> project: projects.entrySet()) {
+			outputs.put(project.getKey(), new File(dir, project.getValue()+".xml.tmp"+System.nanoTime()));
+		}
+		try {
+			CheckstyleReport.split(report, outputs, rootDir, listener);
+			for (Map.Entry<String, String> project: projects.entrySet()) {
+				Files.move(outputs.get(project.getKey()).toPath(), getReport(project.getValue()).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+		} finally {
+			for (File output: outputs.values()) {
+				FileUtils.deleteQuietly(output);
+			}
+		}
+	}
+
+	/**
+	 * Delete entries other than the given ones, i.e. reports of code which no longer exists.
+	 */
+	public void retain(Collection<String> keys) {
+		Set<String> names = new HashSet<String>();
+		for (String key: keys) {
+			names.add(getReport(key).getName());
+		}
+		File[] entries = dir.listFiles();
+		if (entries != null) {
+			for (File entry: entries) {
+				if (!names.contains(entry.getName()) && "xml".equals(FilenameUtils.getExtension(entry.getName()))) {
+					FileUtils.deleteQuietly(entry);
+				}
+			}
+		}
+	}
+
+}
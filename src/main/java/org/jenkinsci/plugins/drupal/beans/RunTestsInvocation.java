@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2015 Fengtan<https://github.com/fengtan/>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.jenkinsci.plugins.drupal.beans;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.TaskListener;
+import hudson.util.ArgumentListBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Run tests using Drupal core's scripts/run-tests.sh.
+ *
+ * Unlike 'drush test-run', run-tests.sh is able to run several test classes concurrently.
+ *
+ * @author Fengtan https://github.com/fengtan/
+ *
+ */
+public class RunTestsInvocation {
+
+	// Same limit as 'drush test-run'.
+	private static final int MAX_TARGETS_LENGTH = 4000;
+
+	private static final String SCRIPT = "scripts/run-tests.sh";
+
+	protected final FilePath root;
+	protected final Launcher launcher;
+	protected final TaskListener listener;
+	protected final EnvVars environment;
+
+	public RunTestsInvocation(FilePath root, Launcher launcher, TaskListener listener, EnvVars environment) {
+		this.root = root;
+		this.launcher = launcher;
+		this.listener = listener;
+		this.environment = environment;
+	}
+
+	/**
+	 * Get PHP executable.
+	 */
+	protected String getPhpExe() {
+		return launcher.isUnix() ? "php" : "php.exe";
+	}
+
+	/**
+	 * Return true if run-tests.sh exists in the Drupal root.
+	 */
+	public boolean exists() throws IOException, InterruptedException {
+		return root.child(SCRIPT).exists();
+	}
+
+	/**
+	 * Run tests.
+	 *
+	 * Long lists of targets are split into several consecutive run-tests.sh commands.
+	 */
+	public boolean testRun(File outputDir, String uri, Collection<String> targets, int concurrency) throws IOException, InterruptedException {
+		boolean result = true;
+		for (Collection<String> chunk: DrushInvocation.chunk(targets, MAX_TARGETS_LENGTH)) {
+			ArgumentListBuilder args = new ArgumentListBuilder(getPhpExe(), SCRIPT);
+			args.add("--php").add(getPhpExe());
+			args.add("--concurrency").add(String.valueOf(concurrency));
+			args.add("--xml").add(outputDir.getAbsolutePath());
+			if (StringUtils.isNotEmpty(uri)) {
+				args.add("--url").add(uri);
+			}
+			args.add("--class").add(StringUtils.join(chunk, ","));
+			// run-tests.sh has to be run from the Drupal root.
+			result &= (launcher.launch().pwd(root).envs(environment).cmds(args).stdout(listener).join() == 0);
+		}
+		return result;
+	}
+
+}
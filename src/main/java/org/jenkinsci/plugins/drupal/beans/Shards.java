@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2015 Fengtan<https://github.com/fengtan/>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.jenkinsci.plugins.drupal.beans;
+
+import hudson.Launcher;
+import hudson.remoting.Callable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+
+/**
+ * Split work into shards run by concurrent processes (tests, code reviews).
+ *
+ * @author Fengtan https://github.com/fengtan/
+ *
+ */
+public class Shards {
+
+	// Value of shards/concurrency options asking for one process per core.
+	public static final String AUTO = "auto";
+
+	/**
+	 * Get number of shards/concurrent processes: the value configured, the number of cores available on the node
+	 * if configured as 'auto', or a single process if nothing is configured.
+	 */
+	public static int getCount(String value, Launcher launcher) throws IOException, InterruptedException {
+		if (AUTO.equalsIgnoreCase(StringUtils.trim(value))) {
+			return getAvailableProcessors(launcher);
+		}
+		return Math.max(NumberUtils.toInt(StringUtils.trim(value), 1), 1);
+	}
+
+	/**
+	 * Get number of cores available on the node.
+	 */
+	public static int getAvailableProcessors(Launcher launcher) throws IOException, InterruptedException {
+		return launcher.getChannel().call(new AvailableProcessors());
+	}
+
+	private static class AvailableProcessors implements Callable<Integer, IOException> {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public Integer call() throws IOException {
+			return Runtime.getRuntime().availableProcessors();
+		}
+
+	}
+
+	/**
+	 * Pack targets into shards using longest-processing-time-first:
+	 * the longest remaining target always goes to the shard with the least work.
+	 * Estimates may be of any unit, e.g. durations of test classes or sizes of projects.
+	 */
+	public static List<List<String>> pack(final Map<String, Double> estimates, int shardsCount) {
+		List<String> targets = new ArrayList<String>(estimates.keySet());
+		Collections.sort(targets, new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) {
+				int comparison = Double.compare(estimates.get(b), estimates.get(a));
+				return (comparison != 0) ? comparison : a.compareTo(b);
+			}
+		});
+
+		PriorityQueue<Shard> queue = new PriorityQueue<Shard>();
+		List<List<String>> shards = new ArrayList<List<String>>();
+		for (int i = 0; i < shardsCount; i++) {
+			Shard shard = new Shard(i);
+			queue.add(shard);
+			shards.add(shard.targets);
+		}
+		for (String target: targets) {
+			Shard shard = queue.poll();
+			shard.targets.add(target);
+			shard.load += estimates.get(target);
+			queue.add(shard);
+		}
+		for (List<String> shard: shards) {
+			Collections.sort(shard);
+		}
+		return shards;
+	}
+
+	/**
+	 * Shard being packed.
+	 */
+	private static class Shard implements Comparable<Shard> {
+
+		private final int index;
+		private final List<String> targets = new ArrayList<String>();
+		private double load = 0;
+
+		private Shard(int index) {
+			this.index = index;
+		}
+
+		@Override
+		public int compareTo(Shard other) {
+			int comparison = Double.compare(load, other.load);
+			return (comparison != 0) ? comparison : (index - other.index);
+		}
+
+	}
+
+}
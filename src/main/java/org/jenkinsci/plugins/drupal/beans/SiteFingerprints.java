@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2015 Fengtan<https://github.com/fengtan/>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.jenkinsci.plugins.drupal.beans;
+
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.model.Job;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Fingerprints of the inputs of the steps which last ran successfully on a Drupal site (installation, update.php, etc),
+ * and of the state they left the site in. Steps whose inputs have not changed can be skipped.
+ *
+ * Stored with the job as a properties file 'root.step=fingerprint'. Concurrent builds of the job share the file:
+ * it is read and written under a lock, and only the fingerprints put by a build are written back.
+ *
+ * @author Fengtan https://github.com/fengtan/
+ *
+ */
+public class SiteFingerprints {
+
+	// Fingerprint store, relative to the root directory of the job.
+	private static final String FINGERPRINTS_FILE = "drupal-fingerprints.properties";
+
+	// State of the site after the last successful step.
+	public static final String STATE = "state";
+
+	// Serialize reads and writes of fingerprint stores between executors.
+	private static final Object LOCK = new Object();
+
+	private final File file;
+	private final Properties properties = new Properties();
+	// Fingerprints put since the last save.
+	private final Properties changes = new Properties();
+
+	public SiteFingerprints(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Get the fingerprints of a job.
+	 */
+	public static SiteFingerprints forJob(Job<?,?> job) {
+		return new SiteFingerprints(new File(job.getRootDir(), FINGERPRINTS_FILE));
+	}
+
+	/**
+	 * Load fingerprints, if they exist.
+	 */
+	public void load() throws IOException {
+		synchronized (LOCK) {
+			read(properties);
+		}
+	}
+
+	/**
+	 * Save the fingerprints put since the last save, keeping those other builds saved in the meantime.
+	 */
+	public void save() throws IOException {
+		synchronized (LOCK) {
+			Properties saved = new Properties();
+			read(saved);
+			saved.putAll(changes);
+			File tmp = new File(file.getPath()+".tmp");
+			OutputStream out = new FileOutputStream(tmp);
+			try {
+				saved.store(out, "Fingerprints of Drupal sites");
+			} finally {
+				IOUtils.closeQuietly(out);
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			properties.clear();
+			properties.putAll(saved);
+			changes.clear();
+		}
+	}
+
+	private void read(Properties target) throws IOException {
+		target.clear();
+		if (!file.exists()) {
+			return;
+		}
+		InputStream in = new FileInputStream(file);
+		try {
+			target.load(in);
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	/**
+	 * Get the fingerprint recorded for a step, or null if the step never ran.
+	 */
+	public String get(String root, String step) {
+		return properties.getProperty(root+"."+step);
+	}
+
+	public void put(String root, String step, String fingerprint) {
+		properties.setProperty(root+"."+step, fingerprint);
+		changes.setProperty(root+"."+step, fingerprint);
+	}
+
+	/**
+	 * Return true if the fingerprint recorded for a step is the given one.
+	 */
+	public boolean matches(String root, String step, String fingerprint) {
+		return fingerprint.equals(get(root, step));
+	}
+
+	/**
+	 * Record the state of a site after a step changed it (e.g. enabled a module), so the next installation
+	 * is not triggered by changes the job made itself.
+	 */
+	public static void recordState(Job<?,?> job, String root, DrushInvocation drush) throws IOException {
+		SiteFingerprints fingerprints = forJob(job);
+		fingerprints.put(root, STATE, state(drush));
+		fingerprints.save();
+	}
+
+	/**
+	 * Fingerprint of a code base: content of the files declaring extensions, their versions and their schemas.
+	 */
+	public static String codebase(FilePath rootPath) throws IOException, InterruptedException {
+		return rootPath.act(new Codebase());
+	}
+
+	/**
+	 * Fingerprint a code base on the node which hosts it.
+	 */
+	private static class Codebase implements FileCallable<String> {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public String invoke(File rootDir, VirtualChannel channel) throws IOException {
+			return CodebaseFingerprint.digestContent(rootDir, "info", "install", "profile");
+		}
+
+	}
+
+	/**
+	 * Fingerprint of the state of a site: enabled extensions, their versions and their schema versions.
+	 */
+	public static String state(DrushInvocation drush) {
+		Map<String, String> extensions = new TreeMap<String, String>();
+		for (DrupalExtension extension: drush.getProjects(false, true).values()) {
+			extensions.put(extension.getName(), extension.getVersion()+":"+extension.getSchemaVersion());
+		}
+		return CodebaseFingerprint.digest(extensions);
+	}
+
+}
@@ -20,20 +20,30 @@ package org.jenkinsci.plugins.drupal.builders;
 
 import hudson.Extension;
 import hudson.FilePath;
+import hudson.FilePath.FileCallable;
 import hudson.Launcher;
 import hudson.model.BuildListener;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
+import hudson.remoting.VirtualChannel;
 import hudson.util.FormValidation;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.StandardCopyOption;
 
 import net.sf.json.JSONObject;
 
+import org.apache.commons.lang.StringUtils;
+import org.jenkinsci.plugins.drupal.beans.CodebaseFingerprint;
+import org.jenkinsci.plugins.drupal.beans.DatabaseSnapshots;
 import org.jenkinsci.plugins.drupal.beans.DrushInvocation;
+import org.jenkinsci.plugins.drupal.beans.DrushSession;
+import org.jenkinsci.plugins.drupal.beans.SiteFingerprints;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
@@ -47,40 +57,214 @@ import org.kohsuke.stapler.StaplerRequest;
  */
 public class DrupalInstanceBuilder extends Builder {
 
+    // Memory-backed directory used by ephemeral installations, unless configured otherwise.
+    public static final String DEFAULT_EPHEMERAL_DIR = "/dev/shm";
+
     public final String db;
     public final String root;
     public final String profile;
     public final boolean refresh;
+    public final boolean skipUnchanged;
     public final boolean updb;
+    public final boolean snapshot;
+    public final boolean ephemeral;
+    public final String ephemeralDir;
     
     @DataBoundConstructor
-    public DrupalInstanceBuilder(String db, String root, String profile, boolean refresh, boolean updb) {
+    public DrupalInstanceBuilder(String db, String root, String profile, boolean refresh, boolean skipUnchanged, boolean updb, boolean snapshot, boolean ephemeral, String ephemeralDir) {
     	this.db = db;
         this.root = root;
         this.profile = profile;
         this.refresh = refresh;
+        this.skipUnchanged = skipUnchanged;
         this.updb = updb;
+        this.snapshot = snapshot;
+        this.ephemeral = ephemeral;
+        this.ephemeralDir = ephemeralDir;
     }
 
     @Override
     public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws IOException, InterruptedException {
     	// Create Drupal installation if needed.
-    	DrushInvocation drush = new DrushInvocation(new FilePath(new File(root)), build.getWorkspace(), launcher, listener, build.getEnvironment(listener));
-    	if (refresh || !drush.status()) {
+    	DrushSession session = DrushSession.forBuild(build);
+    	DrushInvocation drush = new DrushInvocation(new FilePath(new File(root)), build.getWorkspace(), launcher, listener, build.getEnvironment(listener), session);
+    	if (ephemeral) {
+    		installEphemeral(build, drush, session, listener);
+    		return true;
+    	}
+    	FilePath rootPath = build.getWorkspace().child(root);
+    	SiteFingerprints fingerprints = SiteFingerprints.forJob(build.getProject());
+    	// Fingerprinting the code base walks the whole Drupal root: only do it if fingerprints or snapshots are used.
+    	String codebase = null;
+    	String installInputs = null;
+    	if (skipUnchanged || snapshot) {
+    		fingerprints.load();
+    		codebase = SiteFingerprints.codebase(rootPath);
+    		installInputs = CodebaseFingerprint.digest(profile+"\n"+db+"\n"+codebase);
+    	}
+
+    	boolean install;
+    	if (!drush.status()) {
     		listener.getLogger().println("[DRUPAL] No Drupal installation detected, installing Drupal...");
-    		drush.siteInstall(db, profile);	
-    	} else {
+    		install = true;
+    	} else if (!refresh) {
     		listener.getLogger().println("[DRUPAL] Drupal is already installed, skipping installation");
+    		install = false;
+    	} else if (skipUnchanged && fingerprints.matches(root, "install", installInputs) && fingerprints.matches(root, SiteFingerprints.STATE, SiteFingerprints.state(drush))) {
+    		listener.getLogger().println("[DRUPAL] Code base, installation profile and site have not changed since the last installation, skipping installation");
+    		install = false;
+    	} else {
+    		install = true;
+    	}
+
+    	if (install) {
+    		DatabaseSnapshots snapshots = DatabaseSnapshots.forNode(build.getWorkspace());
+    		String key = CodebaseFingerprint.digest(installInputs+"\n"+updb);
+    		boolean restored = false;
+    		if (snapshot && snapshots.contains(key)) {
+    			listener.getLogger().println("[DRUPAL] Restoring database snapshot "+key);
+    			restored = snapshots.restore(key, drush, rootPath);
+    			if (!restored) {
+    				listener.getLogger().println("[DRUPAL] Unable to restore database snapshot, installing Drupal...");
+    			}
+    		}
+    		if (!restored) {
+    			drush.siteInstall(db, profile);
+    			// Run update.php if needed.
+    			if (updb) {
+    				drush.upDb();
+    			}
+    			if (snapshot && drush.status()) {
+    				listener.getLogger().println("[DRUPAL] Saving database snapshot "+key);
+    				if (!snapshots.save(key, drush, rootPath)) {
+    					listener.getLogger().println("[DRUPAL] Unable to save database snapshot");
+    				}
+    			}
+    		}
+    		if (skipUnchanged && drush.status()) {
+    			String state = SiteFingerprints.state(drush);
+    			fingerprints.put(root, "install", installInputs);
+    			fingerprints.put(root, "updb", CodebaseFingerprint.digest(codebase+"\n"+state));
+    			fingerprints.put(root, SiteFingerprints.STATE, state);
+    			fingerprints.save();
+    		}
+    		return true;
     	}
     	
-    	// Run update.php if needed.
+    	// Run update.php if needed, i.e. if the code base or the site changed since it last ran.
     	if (updb) {
-    		drush.upDb();
+    		if (skipUnchanged && fingerprints.matches(root, "updb", CodebaseFingerprint.digest(codebase+"\n"+SiteFingerprints.state(drush)))) {
+    			listener.getLogger().println("[DRUPAL] Code base and site have not changed since update.php last ran, skipping update.php");
+    		} else if (drush.upDb() && skipUnchanged) {
+    			String state = SiteFingerprints.state(drush);
+    			fingerprints.put(root, "updb", CodebaseFingerprint.digest(codebase+"\n"+state));
+    			fingerprints.put(root, SiteFingerprints.STATE, state);
+    			fingerprints.save();
+    		}
     	}
     	
     	return true;
     }
 
+    /**
+     * Install Drupal into a SQLite database and a files directory created for this build only, on a memory-backed file system.
+     * Both are deleted once the build is completed, and the settings and files the site had before are put back.
+     */
+    private void installEphemeral(AbstractBuild<?, ?> build, DrushInvocation drush, DrushSession session, BuildListener listener) throws IOException, InterruptedException {
+    	// Everything happens on the node.
+    	FilePath workspace = build.getWorkspace();
+    	FilePath baseDir = new FilePath(workspace.getChannel(), StringUtils.defaultIfEmpty(ephemeralDir, DEFAULT_EPHEMERAL_DIR));
+    	FilePath siteDir = baseDir.act(new CreateSiteDir("drupal-"+build.getNumber()+"-"));
+    	if (!siteDir.getParent().getName().equals(baseDir.getName())) {
+    		listener.getLogger().println("[DRUPAL] Directory "+baseDir.getRemote()+" is not writable, using the temporary directory instead");
+    	}
+    	session.deleteOnClose(siteDir);
+    	FilePath dbFile = siteDir.child("drupal.sqlite");
+    	FilePath filesDir = siteDir.child("files");
+    	filesDir.mkdirs();
+
+    	// Settings of a previous installation would point to another database: move them out of the way, along with public files.
+    	FilePath defaultDir = workspace.child(root).child("sites/default");
+    	String suffix = ".before-build-"+build.getNumber();
+    	for (String name: new String[] {"settings.php", "files"}) {
+    		FilePath backup = defaultDir.act(new MoveAside(name, name+suffix));
+    		if (backup != null) {
+    			listener.getLogger().println("[DRUPAL] Moving "+name+" to "+backup.getName()+" until the build is completed");
+    			session.restoreOnClose(defaultDir.child(name), backup);
+    		} else {
+    			session.deleteOnClose(defaultDir.child(name));
+    		}
+    	}
+
+    	// Public files go to the memory-backed directory as well.
+    	try {
+    		defaultDir.child("files").symlinkTo(filesDir.getRemote(), listener);
+    	} catch (IOException e) {
+    		listener.getLogger().println("[DRUPAL] Unable to link files directory to "+filesDir.getRemote()+": "+e.getMessage());
+    	}
+
+    	listener.getLogger().println("[DRUPAL] Installing Drupal into ephemeral database "+dbFile.getRemote());
+    	drush.siteInstall("sqlite://"+dbFile.getRemote(), profile);
+    	if (updb) {
+    		drush.upDb();
+    	}
+    }
+
+    /**
+     * Create a directory for an ephemeral site into a base directory, or into the temporary directory if the base directory is not writable.
+     */
+    private static class CreateSiteDir implements FileCallable<FilePath> {
+
+    	private static final long serialVersionUID = 1L;
+
+    	private final String prefix;
+
+    	private CreateSiteDir(String prefix) {
+    		this.prefix = prefix;
+    	}
+
+    	@Override
+    	public FilePath invoke(File baseDir, VirtualChannel channel) throws IOException {
+    		if (!baseDir.isDirectory() || !baseDir.canWrite()) {
+    			baseDir = new File(System.getProperty("java.io.tmpdir"));
+    		}
+    		return new FilePath(Files.createTempDirectory(baseDir.toPath(), prefix).toFile());
+    	}
+
+    }
+
+    /**
+     * Rename a file or a directory of a site directory, if it exists (symbolic links included).
+     * Return the backup, or null if there was nothing to move.
+     */
+    private static class MoveAside implements FileCallable<FilePath> {
+
+    	private static final long serialVersionUID = 1L;
+
+    	private final String name;
+    	private final String backupName;
+
+    	private MoveAside(String name, String backupName) {
+    		this.name = name;
+    		this.backupName = backupName;
+    	}
+
+    	@Override
+    	public FilePath invoke(File siteDir, VirtualChannel channel) throws IOException {
+    		// Drupal makes site directories read-only.
+    		siteDir.mkdirs();
+    		siteDir.setWritable(true);
+    		File file = new File(siteDir, name);
+    		if (!Files.exists(file.toPath(), LinkOption.NOFOLLOW_LINKS)) {
+    			return null;
+    		}
+    		File backup = new File(siteDir, backupName);
+    		Files.move(file.toPath(), backup.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    		return new FilePath(backup);
+    	}
+
+    }
+
     @Extension
     public static final class DescriptorImpl extends BuildStepDescriptor<Builder> {
         /**
@@ -28,21 +28,41 @@ import hudson.model.AbstractProject;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
 import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import net.sf.json.JSONObject;
 
-import org.apache.commons.collections4.CollectionUtils;
-import org.apache.commons.collections4.Transformer;
+import org.apache.commons.collections.CollectionUtils;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang.StringUtils;
 import org.apache.tools.ant.DirectoryScanner;
 import org.apache.tools.ant.types.FileSet;
+import org.jenkinsci.plugins.drupal.beans.CheckstyleReport;
+import org.jenkinsci.plugins.drupal.beans.DrupalExtension;
 import org.jenkinsci.plugins.drupal.beans.DrushInvocation;
+import org.jenkinsci.plugins.drupal.beans.DrushSession;
+import org.jenkinsci.plugins.drupal.beans.PhpcsInvocation;
+import org.jenkinsci.plugins.drupal.beans.ReviewCache;
+import org.jenkinsci.plugins.drupal.beans.Shards;
+import org.jenkinsci.plugins.drupal.beans.SiteFingerprints;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
@@ -58,6 +78,16 @@ public class DrupalReviewBuilder extends Builder {
 
 	// 'drush dl coder' downloads coder-7.x-1.3 so we will use 'drush dl coder-7.x-2.5' explicitly.  
 	private static final String CODER_RELEASE = "coder-7.x-2.5";
+
+	// Review engines: Coder through 'drush coder-review', or PHP_CodeSniffer.
+	public static final String ENGINE_CODER = "coder";
+	public static final String ENGINE_PHPCS = "phpcs";
+
+	// PHP_CodeSniffer caches results of every file into this file, in the workspace.
+	private static final String PHPCS_CACHE_FILE = ".drupal-phpcs-cache";
+
+	// Every shard writes its report into its own subdirectory of the logs directory.
+	private static final String SHARD_DIR_PREFIX = "shard-";
 	
 	public final boolean style;
 	public final boolean comment;
@@ -69,9 +99,11 @@ public class DrupalReviewBuilder extends Builder {
 	public final String logs;
 	public final String except;
 	public final boolean ignoresPass;
+	public final String concurrency;
+	public final String engine;
 	
     @DataBoundConstructor
-    public DrupalReviewBuilder(boolean style, boolean comment, boolean sql, boolean security, boolean i18n, String root, String logs, String except, boolean ignoresPass) {
+    public DrupalReviewBuilder(boolean style, boolean comment, boolean sql, boolean security, boolean i18n, String root, String logs, String except, boolean ignoresPass, String concurrency, String engine) {
     	this.style = style;
     	this.comment = comment;
     	this.sql = sql;
@@ -81,6 +113,8 @@ public class DrupalReviewBuilder extends Builder {
     	this.logs = logs;
     	this.except = except;
     	this.ignoresPass = ignoresPass;
+    	this.concurrency = concurrency;
+    	this.engine = engine;
     }
 
     @Override
@@ -92,9 +126,13 @@ public class DrupalReviewBuilder extends Builder {
     		logsDir.mkdir();
     	}
     	
-    	// Download and enable Coder if necessary.
     	final File rootDir = new File(build.getWorkspace().getRemote(), root);
-    	DrushInvocation drush = new DrushInvocation(new FilePath(rootDir), build.getWorkspace(), launcher, listener, build.getEnvironment(listener));
+    	if (ENGINE_PHPCS.equals(engine)) {
+    		return performPhpcs(build, launcher, listener, logsDir, rootDir);
+    	}
+
+    	// Download and enable Coder if necessary.
+    	DrushInvocation drush = new DrushInvocation(new FilePath(rootDir), build.getWorkspace(), launcher, listener, build.getEnvironment(listener), DrushSession.forBuild(build));
     	if (drush.isModuleInstalled("coder", false)) {
     		listener.getLogger().println("[DRUPAL] Coder already exists");
     	} else {
@@ -105,7 +143,9 @@ public class DrupalReviewBuilder extends Builder {
     		listener.getLogger().println("[DRUPAL] Coder is already enabled");
     	} else {
     		listener.getLogger().println("[DRUPAL] Coder is not enabled. Enabling Coder...");
-    		drush.enable("coder_review");
+    		if (drush.enable("coder_review")) {
+    			SiteFingerprints.recordState(build.getProject(), root, drush);
+    		}
     	}
 		
 		Collection<String> reviews = new HashSet<String>();
@@ -115,27 +155,198 @@ public class DrupalReviewBuilder extends Builder {
 		if (this.security) reviews.add("security");
 		if (this.i18n)     reviews.add("i18n");
 
-		// Remove projects the user wants to exclude.
-		// **/*.info matches all modules, themes and installation profiles.
-		// Installation profiles cannot be reviewed and will be just ignored by Coder.
-		FileSet fileSet = Util.createFileSet(rootDir, "**/*.info", except);
-		DirectoryScanner scanner = fileSet.getDirectoryScanner();
-		Collection<String> projects = Arrays.asList(scanner.getIncludedFiles());
-
-		// Transform sites/all/modules/mymodule/mymodule.module into mymodule.
-		CollectionUtils.transform(projects, new Transformer<String, String>() {
-			@Override
-			public String transform(String project) {
-				return FilenameUtils.getBaseName(project);
+		Map<String, File> projects = getProjects(rootDir);
+
+		// Projects sharing a directory (e.g. views and views_ui) are reviewed and cached together, keyed by their first name.
+		Map<String, List<String>> groups = new TreeMap<String, List<String>>();
+		Map<File, String> groupsByDir = new HashMap<File, String>();
+		for (Map.Entry<String, File> project: projects.entrySet()) {
+			String group = groupsByDir.get(project.getValue());
+			if (group == null) {
+				group = project.getKey();
+				groupsByDir.put(project.getValue(), group);
+				groups.put(group, new ArrayList<String>());
+			}
+			groups.get(group).add(project.getKey());
+		}
+
+		// Reuse reports of projects which have not changed since they were last reviewed with the same options.
+		ReviewCache cache = ReviewCache.forJob(build.getProject());
+		String options = getOptions(reviews, drush);
+		Map<String, String> keys = new HashMap<String, String>();
+		Map<String, File> changed = new TreeMap<String, File>();
+		Map<String, File> cachedReports = new LinkedHashMap<String, File>();
+		for (Map.Entry<String, List<String>> group: groups.entrySet()) {
+			String key = ReviewCache.getKey(group.getValue(), projects.get(group.getKey()), options);
+			keys.put(group.getKey(), key);
+			if (cache.contains(key)) {
+				cachedReports.put(key, cache.getReport(key));
+			} else {
+				changed.put(group.getKey(), projects.get(group.getKey()));
 			}
-		});
+		}
+		List<File> reports = new ArrayList<File>(cachedReports.values());
 
 		// Run code review.
-		drush.coderReview(logsDir, reviews, projects, ignoresPass);
+		if (projects.isEmpty()) {
+			drush.coderReview(logsDir, reviews, projects.keySet(), ignoresPass);
+			return true;
+		}
+		listener.getLogger().println("[DRUPAL] Reusing cached reviews of "+cachedReports.size()+" projects, reviewing "+changed.size()+" projects");
+		List<List<String>> shards = Collections.emptyList();
+		List<Boolean> results = Collections.emptyList();
+		if (!changed.isEmpty()) {
+			int concurrencyCount = Math.min(Shards.getCount(concurrency, launcher), changed.size());
+			Map<String, Double> sizes = new HashMap<String, Double>();
+			for (Map.Entry<String, File> group: changed.entrySet()) {
+				sizes.put(group.getKey(), (double) FileUtils.sizeOfDirectory(group.getValue()));
+			}
+			shards = Shards.pack(sizes, concurrencyCount);
+			results = runShards(drush, logsDir, reviews, shards, groups, listener);
+		}
+
+		// Store reports of every shard into the cache, then merge them with cached reports into the logs directory.
+		for (int i = 0; i < shards.size(); i++) {
+			File report = new File(new File(logsDir, SHARD_DIR_PREFIX+i), CheckstyleReport.REPORT_FILE);
+			reports.add(report);
+			// Only cache reviews which completed successfully.
+			if (results.get(i)) {
+				Map<String, String> shardKeys = new HashMap<String, String>();
+				for (String group: shards.get(i)) {
+					// Coder skips projects named after a review (e.g. 'comment'): their directory was not actually reviewed.
+					if (CollectionUtils.containsAny(groups.get(group), reviews)) {
+						continue;
+					}
+					String dir = FilenameUtils.separatorsToUnix(rootDir.toPath().relativize(changed.get(group).toPath()).toString());
+					shardKeys.put(dir, keys.get(group));
+				}
+				cache.store(report, shardKeys, rootDir, listener);
+			}
+		}
+		int files = CheckstyleReport.merge(reports, new File(logsDir, CheckstyleReport.REPORT_FILE), listener);
+		listener.getLogger().println("[DRUPAL] Merged reviews of "+projects.size()+" projects ("+files+" files)");
+		cache.retain(keys.values());
+		for (int i = 0; i < shards.size(); i++) {
+			FileUtils.deleteDirectory(new File(logsDir, SHARD_DIR_PREFIX+i));
+		}
 
     	return true;
     }
 
+    /**
+     * Get projects to review, keyed by machine name.
+     */
+    private Map<String, File> getProjects(File rootDir) {
+    	// Remove projects the user wants to exclude.
+    	// **/*.info matches all modules, themes and installation profiles.
+    	// Installation profiles cannot be reviewed and will be just ignored by Coder.
+    	FileSet fileSet = Util.createFileSet(rootDir, "**/*.info", except);
+    	DirectoryScanner scanner = fileSet.getDirectoryScanner();
+
+    	// Transform sites/all/modules/mymodule/mymodule.info into mymodule.
+    	// Remember where every project lives so the review can be balanced across processes.
+    	Map<String, File> projects = new TreeMap<String, File>();
+    	for (String info: scanner.getIncludedFiles()) {
+    		String project = FilenameUtils.getBaseName(info);
+    		if (!projects.containsKey(project)) {
+    			projects.put(project, new File(rootDir, info).getParentFile());
+    		}
+    	}
+    	return projects;
+    }
+
+    /**
+     * Review projects with PHP_CodeSniffer, which does not need a Drupal site.
+     */
+    private boolean performPhpcs(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener, File logsDir, File rootDir) throws IOException, InterruptedException {
+    	File outputFile = new File(logsDir, CheckstyleReport.REPORT_FILE);
+    	Map<String, File> projects = getProjects(rootDir);
+    	if (projects.isEmpty()) {
+    		listener.getLogger().println("[DRUPAL] No projects to review");
+    		CheckstyleReport.merge(Collections.<File>emptyList(), outputFile, listener);
+    		return true;
+    	}
+    	// phpcs reviews directories recursively: skip projects nested into other projects.
+    	List<String> paths = new ArrayList<String>();
+    	for (File dir: new HashSet<File>(projects.values())) {
+    		paths.add(FilenameUtils.separatorsToUnix(rootDir.toPath().relativize(dir.toPath()).toString()));
+    	}
+    	Collections.sort(paths);
+    	List<String> dirs = new ArrayList<String>();
+    	for (String path: paths) {
+    		if (path.isEmpty()) {
+    			// The Drupal root itself is a project.
+    			dirs = Collections.singletonList(".");
+    			break;
+    		}
+    		boolean nested = false;
+    		for (String dir: dirs) {
+    			nested |= path.startsWith(dir+"/");
+    		}
+    		if (!nested) {
+    			dirs.add(path);
+    		}
+    	}
+    	int parallel = Shards.getCount(concurrency, launcher);
+    	listener.getLogger().println("[DRUPAL] Reviewing "+dirs.size()+" projects with phpcs using "+parallel+" processes");
+    	PhpcsInvocation phpcs = new PhpcsInvocation(new FilePath(rootDir), launcher, listener, build.getEnvironment(listener));
+    	// A crash leaves a missing or partial report: fail the build rather than publishing it.
+    	return phpcs.review(outputFile, dirs, parallel, new File(build.getWorkspace().getRemote(), PHPCS_CACHE_FILE));
+    }
+
+    /**
+     * Get a digest of the review options, including the version of Coder.
+     */
+    private String getOptions(Collection<String> reviews, DrushInvocation drush) {
+    	List<String> options = new ArrayList<String>(reviews);
+    	Collections.sort(options);
+    	DrupalExtension coder = drush.getProjects(true, true).get("coder");
+    	options.add("ignoresPass="+ignoresPass);
+    	options.add("coder="+((coder == null) ? CODER_RELEASE : coder.getVersion()));
+    	return StringUtils.join(options, ",");
+    }
+
+    /**
+     * Run every shard as a separate 'drush coder-review' process, writing its report into its own subdirectory of the logs directory.
+     * Every group of projects sharing a directory is reviewed by the same process.
+     * Return whether every shard completed successfully.
+     */
+    private List<Boolean> runShards(final DrushInvocation drush, File logsDir, final Collection<String> reviews, List<List<String>> shards, Map<String, List<String>> groups, BuildListener listener) throws IOException, InterruptedException {
+    	List<Boolean> results = new ArrayList<Boolean>();
+    	List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+    	ExecutorService executor = Executors.newFixedThreadPool(shards.size());
+    	try {
+    		for (int i = 0; i < shards.size(); i++) {
+    			final File shardDir = new File(logsDir, SHARD_DIR_PREFIX+i);
+    			final List<String> shardProjects = new ArrayList<String>();
+    			for (String group: shards.get(i)) {
+    				shardProjects.addAll(groups.get(group));
+    			}
+    			FileUtils.deleteDirectory(shardDir);
+    			shardDir.mkdir();
+    			listener.getLogger().println("[DRUPAL] Reviewing shard "+i+" ("+shardProjects.size()+" projects) into "+shardDir.getName());
+    			futures.add(executor.submit(new Callable<Boolean>() {
+    				@Override
+    				public Boolean call() throws IOException, InterruptedException {
+    					return drush.coderReview(shardDir, reviews, shardProjects, ignoresPass);
+    				}
+    			}));
+    		}
+    		for (Future<Boolean> future: futures) {
+    			try {
+    				results.add(future.get());
+    			} catch (ExecutionException e) {
+    				listener.getLogger().println("[DRUPAL] Shard failed: "+e.getCause());
+    				results.add(false);
+    			}
+    		}
+    	} finally {
+    		// Kill remaining processes if the build was aborted.
+    		executor.shutdownNow();
+    	}
+    	return results;
+    }
+
     @Extension
     public static final class DescriptorImpl extends BuildStepDescriptor<Builder> {
         /**
@@ -178,6 +389,26 @@ public class DrupalReviewBuilder extends Builder {
         	return FormValidation.ok();
         }
         
+        /**
+         * Review engines available.
+         */
+        public ListBoxModel doFillEngineItems() {
+            ListBoxModel items = new ListBoxModel();
+            items.add("Coder (drush coder-review)", ENGINE_CODER);
+            items.add("PHP_CodeSniffer (phpcs)", ENGINE_PHPCS);
+            return items;
+        }
+
+        /**
+         * Field 'concurrency' should be empty, 'auto' or a positive number.
+         */
+        public FormValidation doCheckConcurrency(@QueryParameter String value) {
+            if (value.length() == 0 || Shards.AUTO.equalsIgnoreCase(value.trim())) {
+            	return FormValidation.ok();
+            }
+            return FormValidation.validatePositiveInteger(value);
+        }
+
         /**
          * Field 'logs' should not be empty.
          */
@@ -27,6 +27,7 @@ import hudson.model.AbstractProject;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
 import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
 
 import java.io.File;
 import java.io.IOException;
@@ -35,14 +36,29 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import net.sf.json.JSONObject;
 
 import org.apache.commons.collections.Closure;
 import org.apache.commons.collections.CollectionUtils;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.jenkinsci.plugins.drupal.beans.CodebaseFingerprint;
+import org.jenkinsci.plugins.drupal.beans.DrupalExtension;
 import org.jenkinsci.plugins.drupal.beans.DrupalTest;
+import org.jenkinsci.plugins.drupal.beans.DrupalTestCatalog;
+import org.jenkinsci.plugins.drupal.beans.DrupalTestScanner;
+import org.jenkinsci.plugins.drupal.beans.DrupalTestTimings;
 import org.jenkinsci.plugins.drupal.beans.DrushInvocation;
+import org.jenkinsci.plugins.drupal.beans.DrushSession;
+import org.jenkinsci.plugins.drupal.beans.RunTestsInvocation;
+import org.jenkinsci.plugins.drupal.beans.Shards;
+import org.jenkinsci.plugins.drupal.beans.SiteFingerprints;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
@@ -56,19 +72,44 @@ import org.kohsuke.stapler.StaplerRequest;
  */
 public class DrupalTestsBuilder extends Builder {
 
+	// Test engines: 'drush test-run' or Drupal core's scripts/run-tests.sh.
+	public static final String ENGINE_DRUSH = "drush";
+	public static final String ENGINE_RUNTESTS = "runtests";
+
+	// Test discovery: either ask Drush, or parse PHP files.
+	public static final String DISCOVERY_DRUSH = "drush";
+	public static final String DISCOVERY_STATIC = "static";
+
+	// Every shard writes its results into its own subdirectory of the logs directory.
+	private static final String SHARD_DIR_PREFIX = "shard-";
+
+	// Durations of test classes are stored into this file, in the job directory.
+	private static final String TIMINGS_FILE = "drupal-test-timings.properties";
+
+	// Tests available are stored into this file, in the job directory.
+	private static final String CATALOG_FILE = "drupal-test-catalog.json";
+
     public final String uri;
     public final String root;
     public final String logs;
     public final String exceptGroups;
     public final String exceptClasses;
+    public final String shards;
+    public final String engine;
+    public final String concurrency;
+    public final String discovery;
 
     @DataBoundConstructor
-    public DrupalTestsBuilder(String uri, String root, String logs, String exceptGroups, String exceptClasses) {
+    public DrupalTestsBuilder(String uri, String root, String logs, String exceptGroups, String exceptClasses, String shards, String engine, String concurrency, String discovery) {
         this.uri = uri;
         this.root = root;
         this.logs = logs;
         this.exceptGroups = exceptGroups;
         this.exceptClasses = exceptClasses;
+        this.shards = shards;
+        this.engine = engine;
+        this.concurrency = concurrency;
+        this.discovery = discovery;
     }
 
     @Override
@@ -80,26 +121,41 @@ public class DrupalTestsBuilder extends Builder {
     		logsDir.mkdir();
     	}
 
-    	// Enable Simpletest if necessary.
+    	// Check whether test files have changed since the last discovery.
     	File rootDir = new File(build.getWorkspace().getRemote(), root);
-    	DrushInvocation drush = new DrushInvocation(new FilePath(rootDir), build.getWorkspace(), launcher, listener, build.getEnvironment(listener));
+    	DrupalTestCatalog catalog = new DrupalTestCatalog(new File(build.getProject().getRootDir(), CATALOG_FILE));
+    	catalog.load();
+    	int processors = Shards.getAvailableProcessors(launcher);
+    	Map<String, String> files = CodebaseFingerprint.scan(rootDir, processors, DrupalTestCatalog.EXTENSIONS);
+    	boolean upToDate = catalog.isUpToDate(getDiscovery(), files);
+
+    	// Bootstrap Drupal once to find out which modules are enabled and, if Drush has to discover tests, which tests are available.
+    	DrushInvocation drush = new DrushInvocation(new FilePath(rootDir), build.getWorkspace(), launcher, listener, build.getEnvironment(listener), DrushSession.forBuild(build));
+    	drush.probe(!upToDate && !DISCOVERY_STATIC.equals(discovery));
+
+    	// Enable Simpletest if necessary.
     	if (drush.isModuleInstalled("simpletest", true)) {
     		listener.getLogger().println("[DRUPAL] Simpletest is already enabled");
     	} else {
     		listener.getLogger().println("[DRUPAL] Simpletest is not enabled. Enabling Simpletest...");
-    		drush.enable("simpletest");
+    		if (drush.enable("simpletest")) {
+    			SiteFingerprints.recordState(build.getProject(), root, drush);
+    		}
     	}
     	
     	// Build list of targets and filter out excluded groups/classes.
     	final List<String> targets = new ArrayList<String>();
+    	final Collection<DrupalTest> tests = new ArrayList<DrupalTest>();
 		final Collection<String> groups = Arrays.asList(exceptGroups.toLowerCase().split(",[\\s]*"));
 		final Collection<String> classes = Arrays.asList(exceptClasses.toLowerCase().split(",[\\s]*"));
-		CollectionUtils.forAllDo(drush.getTests(), new Closure() {
+		final Collection<DrupalTest> available = getTests(catalog, files, upToDate, drush, rootDir, processors, listener);
+		CollectionUtils.forAllDo(available, new Closure() {
 			@Override
 			public void execute(Object input) {
 				DrupalTest test = (DrupalTest) input;
 				if (!groups.contains(test.getGroup().toLowerCase()) && !classes.contains(test.getClassName().toLowerCase())) {
-					targets.add(test.getClassName());	
+					targets.add(test.getClassName());
+					tests.add(test);
 				}
 			}
 		});
@@ -108,13 +164,132 @@ public class DrupalTestsBuilder extends Builder {
     	// Run Simpletest.
     	if (CollectionUtils.isEmpty(targets)) {
     		listener.getLogger().println("[DRUPAL] No test groups/classes to run");
+    		return true;
+    	}
+    	if (ENGINE_RUNTESTS.equals(engine)) {
+    		RunTestsInvocation runTests = new RunTestsInvocation(new FilePath(rootDir), launcher, listener, build.getEnvironment(listener));
+    		if (runTests.exists()) {
+    			int concurrencyCount = Shards.getCount(concurrency, launcher);
+    			listener.getLogger().println("[DRUPAL] Running "+targets.size()+" test classes through run-tests.sh with concurrency "+concurrencyCount);
+    			runTests.testRun(logsDir, uri, targets, concurrencyCount);
+    			return true;
+    		}
+    		listener.getLogger().println("[DRUPAL] Could not find scripts/run-tests.sh, falling back to 'drush test-run'");
+    	}
+    	int shardsCount = Math.min(Shards.getCount(shards, launcher), targets.size());
+    	if (shardsCount <= 1) {
+        	drush.testRun(logsDir, uri, targets);
     	} else {
-        	drush.testRun(logsDir, uri, targets);	
+    		// Balance shards using durations reported by previous builds.
+    		DrupalTestTimings timings = new DrupalTestTimings(new File(build.getProject().getRootDir(), TIMINGS_FILE));
+    		timings.load();
+    		int updated = timings.update(logsDir);
+    		int removed = timings.retain(available);
+    		if (updated > 0) {
+    			listener.getLogger().println("[DRUPAL] Recorded durations of "+updated+" test classes from previous results");
+    		}
+    		if (updated > 0 || removed > 0) {
+    			timings.save();
+    		}
+    		runShards(drush, logsDir, Shards.pack(timings.estimate(tests), shardsCount), listener);
     	}
 
     	return true;
     }
 
+    /**
+     * Get the discovery method, Drush unless static discovery is configured.
+     */
+    private String getDiscovery() {
+    	return DISCOVERY_STATIC.equals(discovery) ? DISCOVERY_STATIC : DISCOVERY_DRUSH;
+    }
+
+    /**
+     * Get list of tests available.
+     * Test discovery is skipped if test files have not changed since the last discovery.
+     * Static discovery only parses files that have changed, and leaves out tests of modules which are not enabled, like Drush does.
+     */
+    private Collection<DrupalTest> getTests(DrupalTestCatalog catalog, Map<String, String> files, boolean upToDate, DrushInvocation drush, File rootDir, int threads, BuildListener listener) throws IOException, InterruptedException {
+    	if (DISCOVERY_STATIC.equals(discovery)) {
+    		if (upToDate) {
+    			listener.getLogger().println("[DRUPAL] Test files have not changed, reusing catalog of "+catalog.getTests().size()+" test classes");
+    		} else {
+    			Collection<String> changed = catalog.getChangedFiles(files);
+    			listener.getLogger().println("[DRUPAL] Test files have changed, parsing "+changed.size()+" files...");
+    			catalog.update(DISCOVERY_STATIC, files, DrupalTestScanner.parse(rootDir, changed, threads));
+    			catalog.save();
+    		}
+    		Map<String, DrupalExtension> enabled = drush.getProjects(true, true);
+    		if (enabled.isEmpty()) {
+    			listener.getLogger().println("[DRUPAL] Could not list enabled modules, running tests of all modules");
+    			return catalog.getTests();
+    		}
+    		return catalog.getTests(DrupalTestScanner.getModules(rootDir, files.keySet()), enabled.keySet());
+    	}
+
+    	if (upToDate) {
+    		listener.getLogger().println("[DRUPAL] Test files have not changed, reusing catalog of "+catalog.getTests().size()+" test classes");
+    		return catalog.getTests();
+    	}
+
+    	listener.getLogger().println("[DRUPAL] Test files have changed, discovering tests...");
+    	Collection<DrupalTest> tests = drush.getTests();
+    	if (!tests.isEmpty()) {
+    		catalog.update(DISCOVERY_DRUSH, files, tests);
+    		catalog.save();
+    	}
+    	return tests;
+    }
+
+    /**
+     * Run every shard as a separate 'drush test-run' process, then merge results into the logs directory.
+     */
+    private void runShards(final DrushInvocation drush, File logsDir, List<List<String>> shards, BuildListener listener) throws IOException, InterruptedException {
+    	List<File> shardDirs = new ArrayList<File>();
+    	List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+    	ExecutorService executor = Executors.newFixedThreadPool(shards.size());
+    	try {
+    		for (int i = 0; i < shards.size(); i++) {
+    			final File shardDir = new File(logsDir, SHARD_DIR_PREFIX+i);
+    			final List<String> shardTargets = shards.get(i);
+    			FileUtils.deleteDirectory(shardDir);
+    			shardDir.mkdir();
+    			shardDirs.add(shardDir);
+    			listener.getLogger().println("[DRUPAL] Running shard "+i+" ("+shardTargets.size()+" test classes) into "+shardDir.getName());
+    			futures.add(executor.submit(new java.util.concurrent.Callable<Boolean>() {
+    				@Override
+    				public Boolean call() throws IOException, InterruptedException {
+    					return drush.testRun(shardDir, uri, shardTargets);
+    				}
+    			}));
+    		}
+    		for (Future<Boolean> future: futures) {
+    			try {
+    				future.get();
+    			} catch (ExecutionException e) {
+    				listener.getLogger().println("[DRUPAL] Shard failed: "+e.getCause());
+    			}
+    		}
+    	} finally {
+    		// Kill remaining processes if the build was aborted.
+    		executor.shutdownNow();
+    	}
+
+    	// Merge results of every shard into the logs directory.
+    	listener.getLogger().println("[DRUPAL] Merging results of "+shards.size()+" shards");
+    	for (File shardDir: shardDirs) {
+    		File[] files = shardDir.listFiles();
+    		if (files != null) {
+    			for (File file: files) {
+    				File destination = new File(logsDir, file.getName());
+    				FileUtils.deleteQuietly(destination);
+    				FileUtils.moveToDirectory(file, logsDir, false);
+    			}
+    		}
+    		FileUtils.deleteDirectory(shardDir);
+    	}
+    }
+
     @Extension
     public static final class DescriptorImpl extends BuildStepDescriptor<Builder> {
         /**
@@ -176,6 +351,43 @@ public class DrupalTestsBuilder extends Builder {
             }
             return FormValidation.ok();
         }
+
+        /**
+         * Field 'shards' should be empty, 'auto' or a positive number.
+         */
+        public FormValidation doCheckShards(@QueryParameter String value) {
+            if (value.length() == 0 || Shards.AUTO.equalsIgnoreCase(value.trim())) {
+            	return FormValidation.ok();
+            }
+            return FormValidation.validatePositiveInteger(value);
+        }
+
+        /**
+         * Field 'concurrency' should be empty, 'auto' or a positive number.
+         */
+        public FormValidation doCheckConcurrency(@QueryParameter String value) {
+            return doCheckShards(value);
+        }
+
+        /**
+         * Test engines available.
+         */
+        public ListBoxModel doFillEngineItems() {
+            ListBoxModel items = new ListBoxModel();
+            items.add("drush test-run", ENGINE_DRUSH);
+            items.add("scripts/run-tests.sh", ENGINE_RUNTESTS);
+            return items;
+        }
+
+        /**
+         * Test discovery modes available.
+         */
+        public ListBoxModel doFillDiscoveryItems() {
+            ListBoxModel items = new ListBoxModel();
+            items.add("Ask Drush", DISCOVERY_DRUSH);
+            items.add("Parse PHP files", DISCOVERY_STATIC);
+            return items;
+        }
         
     }
 }
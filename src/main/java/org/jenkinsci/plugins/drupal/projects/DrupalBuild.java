@@ -23,6 +23,8 @@ import hudson.model.Build;
 import java.io.File;
 import java.io.IOException;
 
+import org.jenkinsci.plugins.drupal.beans.DrushSession;
+
 /**
  * Drupal build.
  * 
@@ -31,6 +33,9 @@ import java.io.IOException;
  */
 public class DrupalBuild extends Build<DrupalProject, DrupalBuild> {
 
+	// Results of Drush commands shared by builders, not persisted.
+	private transient DrushSession drushSession;
+
 	public DrupalBuild(DrupalProject project) throws IOException {
 		super(project);
 	}
@@ -39,4 +44,11 @@ public class DrupalBuild extends Build<DrupalProject, DrupalBuild> {
 		super(project, buildDir);
 	}
 
+	public synchronized DrushSession getDrushSession() {
+		if (drushSession == null) {
+			drushSession = new DrushSession();
+		}
+		return drushSession;
+	}
+
 }
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2015 Fengtan<https://github.com/fengtan/>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.jenkinsci.plugins.drupal.scm;
+
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Node-local cache of Drupal code bases built by 'drush make', keyed by the hash of the normalized Makefile
+ * and the releases it resolved into.
+ *
+ * Cached code bases are pristine and shared with the Drupal roots of jobs: they are cloned using copy-on-write
+ * copies or hard links (see TreeCloner), so disk usage does not grow with the number of jobs. Entries themselves
+ * are copies, so they never share files with the Drupal root they were stored from.
+ * 
+ * The least recently used code bases are evicted once the cache holds more than maxEntries code bases.
+ *
+ * @author Fengtan https://github.com/fengtan/
+ *
+ */
+public class DrushMakeCache {
+
+	// Maximum number of code bases kept on every node.
+	private static final int MAX_ENTRIES = Integer.getInteger(DrushMakeCache.class.getName()+".maxEntries", 5);
+
+	// Cache directory, relative to the root of the node.
+	private static final String CACHE_DIR = "drupal-make-cache";
+
+	// Every entry holds a code base and a file touched every time the code base is used.
+	private static final String TREE = "root";
+	private static final String LAST_USED = "last-used";
+
+	// Serialize operations on the cache between executors of the node (operations run on the node).
+	private static final Object LOCK = new Object();
+
+	private final FilePath dir;
+
+	public DrushMakeCache(FilePath dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * Get the cache of the node holding a workspace.
+	 */
+	public static DrushMakeCache forNode(FilePath workspace) {
+		Computer computer = Computer.currentComputer();
+		Node node = (computer == null) ? null : computer.getNode();
+		FilePath nodeRoot = (node == null) ? null : node.getRootPath();
+		FilePath root = (nodeRoot == null) ? workspace.getParent() : nodeRoot;
+		return new DrushMakeCache(root.child(CACHE_DIR));
+	}
+
+	/**
+	 * Return true if the cache holds a code base for this key.
+	 */
+	public boolean contains(String hash) throws IOException, InterruptedException {
+		return dir.child(hash).child(LAST_USED).exists();
+	}
+
+	/**
+	 * Clone a cached code base into a Drupal root, on the node.
+	 */
+	public TreeCloner.Method restore(String hash, FilePath rootPath) throws IOException, InterruptedException {
+		return dir.act(new Restore(hash, rootPath.getRemote()));
+	}
+
+	/**
+	 * Copy a Drupal root into the cache, then evict least recently used code bases, on the node.
+	 */
+	public void store(String hash, FilePath rootPath) throws IOException, InterruptedException {
+		dir.act(new Store(hash, rootPath.getRemote(), MAX_ENTRIES));
+	}
+
+	private static boolean contains(File dir, String hash) {
+		return new File(new File(dir, hash), LAST_USED).exists();
+	}
+
+	/**
+	 * Delete least recently used code bases.
+	 */
+	private static void evict(File dir, int maxEntries) throws IOException {
+		File[] entries = dir.listFiles();
+		if (entries == null) {
+			return;
+		}
+		List<File> complete = new ArrayList<File>();
+		for (File entry: entries) {
+			if (new File(entry, LAST_USED).exists()) {
+				complete.add(entry);
+			}
+		}
+		if (complete.size() <= maxEntries) {
+			return;
+		}
+		Collections.sort(complete, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Long.compare(new File(b, LAST_USED).lastModified(), new File(a, LAST_USED).lastModified());
+			}
+		});
+		for (File entry: complete.subList(maxEntries, complete.size())) {
+			FileUtils.deleteDirectory(entry);
+		}
+	}
+
+	private static class Restore implements FileCallable<TreeCloner.Method> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String hash;
+		private final String rootDir;
+
+		private Restore(String hash, String rootDir) {
+			this.hash = hash;
+			this.rootDir = rootDir;
+		}
+
+		@Override
+		public TreeCloner.Method invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+			File entry = new File(dir, hash);
+			synchronized (LOCK) {
+				FileUtils.touch(new File(entry, LAST_USED));
+			}
+			return TreeCloner.clone(new File(entry, TREE), new File(rootDir));
+		}
+
+	}
+
+	private static class Store implements FileCallable<Void> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String hash;
+		private final String rootDir;
+		// Configured on the controller, not on the node.
+		private final int maxEntries;
+
+		private Store(String hash, String rootDir, int maxEntries) {
+			this.hash = hash;
+			this.rootDir = rootDir;
+			this.maxEntries = maxEntries;
+		}
+
+		@Override
+		public Void invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+			File entry = new File(dir, hash);
+			File tmp = new File(dir, hash+".tmp"+System.nanoTime());
+			tmp.mkdirs();
+			TreeCloner.copy(new File(rootDir), new File(tmp, TREE));
+			FileUtils.touch(new File(tmp, LAST_USED));
+			synchronized (LOCK) {
+				if (contains(dir, hash)) {
+					// Another build stored the same code base meanwhile.
+					FileUtils.deleteDirectory(tmp);
+				} else {
+					FileUtils.deleteDirectory(entry);
+					Files.move(tmp.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+				}
+				evict(dir, maxEntries);
+			}
+			return null;
+		}
+
+	}
+
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2015 Fengtan<https://github.com/fengtan/>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.jenkinsci.plugins.drupal.scm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringUtils;
+import org.jenkinsci.plugins.drupal.beans.CodebaseFingerprint;
+
+/**
+ * Drush Makefile (INI format).
+ * 
+ * Only the subset needed to know which project/version goes where is modeled.
+ * Makefiles using other features (libraries, includes, patches, custom downloads) are flagged as complex:
+ * such Makefiles can only be built by 'drush make'.
+ *
+ * @author Fengtan https://github.com/fengtan/
+ *
+ */
+public class DrushMakefile {
+
+	// Machine name of Drupal core.
+	public static final String CORE_PROJECT = "drupal";
+
+	// key[a][b][] = value
+	private static final Pattern LINE_PATTERN = Pattern.compile("^([^\\[=]+)((?:\\[[^\\]]*\\])*)\\s*=\\s*(.*)$");
+	private static final Pattern KEY_PATTERN = Pattern.compile("\\[([^\\]]*)\\]");
+
+	private String core = "";
+	private String api = "";
+	private String defaultSubdir = "";
+	private boolean complex = false;
+	private final Map<String, Project> projects = new TreeMap<String, Project>();
+
+	/**
+	 * Normalize the content of a Makefile: line endings, whitespace and comments do not matter.
+	 */
+	public static String normalize(String content) {
+		List<String> lines = new ArrayList<String>();
+		for (String line: StringUtils.defaultString(content).split("\\r\\n|\\r|\\n")) {
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith(";") || line.startsWith("#")) {
+				continue;
+			}
+			int equals = line.indexOf('=');
+			if (equals > 0) {
+				line = line.substring(0, equals).trim()+"="+line.substring(equals + 1).trim();
+			}
+			lines.add(line);
+		}
+		return StringUtils.join(lines, "\n");
+	}
+
+	/**
+	 * Hash of the normalized content of a Makefile.
+	 */
+	public static String hash(String content) {
+		return CodebaseFingerprint.digest(normalize(content));
+	}
+
+	/**
+	 * Parse a Makefile.
+	 */
+	public static DrushMakefile parse(String content) {
+		DrushMakefile makefile = new DrushMakefile();
+		for (String line: normalize(content).split("\n")) {
+			Matcher matcher = LINE_PATTERN.matcher(line);
+			if (!matcher.matches()) {
+				continue;
+			}
+			String name = matcher.group(1).trim();
+			List<String> keys = new ArrayList<String>();
+			Matcher key = KEY_PATTERN.matcher(matcher.group(2));
+			while (key.find()) {
+				keys.add(key.group(1).trim());
+			}
+			makefile.set(name, keys, StringUtils.strip(matcher.group(3).trim(), "\"'"));
+		}
+		return makefile;
+	}
+
+	private void set(String name, List<String> keys, String value) {
+		if ("core".equals(name) && keys.isEmpty()) {
+			core = value;
+		} else if ("api".equals(name) && keys.isEmpty()) {
+			api = value;
+		} else if ("defaults".equals(name) && keys.size() == 2 && "projects".equals(keys.get(0)) && "subdir".equals(keys.get(1))) {
+			defaultSubdir = value;
+		} else if ("projects".equals(name) && !keys.isEmpty()) {
+			if (keys.get(0).isEmpty()) {
+				// projects[] = views
+				getProject(value);
+			} else if (keys.size() == 1) {
+				// projects[views] = 3.5
+				getProject(keys.get(0)).version = value;
+			} else if (keys.size() == 2 && "version".equals(keys.get(1))) {
+				getProject(keys.get(0)).version = value;
+			} else if (keys.size() == 2 && "type".equals(keys.get(1))) {
+				getProject(keys.get(0)).type = value;
+			} else if (keys.size() == 2 && "subdir".equals(keys.get(1))) {
+				getProject(keys.get(0)).subdir = value;
+			} else {
+				// Patches, custom downloads, destinations, etc.
+				getProject(keys.get(0)).custom = true;
+				complex = true;
+			}
+		} else {
+			// Libraries, includes, etc.
+			complex = true;
+		}
+	}
+
+	private Project getProject(String name) {
+		Project project = projects.get(name);
+		if (project == null) {
+			project = new Project(name);
+			projects.put(name, project);
+		}
+		return project;
+	}
+
+	public String getCore() {
+		return core;
+	}
+
+	public String getApi() {
+		return api;
+	}
+
+	/**
+	 * Return true if the Makefile uses features that are not modeled.
+	 */
+	public boolean isComplex() {
+		return complex;
+	}
+
+	/**
+	 * Get projects keyed by machine name.
+	 */
+	public Map<String, Project> getProjects() {
+		return Collections.unmodifiableMap(projects);
+	}
+
+	/**
+	 * Project of a Makefile.
+	 */
+	public class Project {
+
+		private final String name;
+		private String version = "";
+		private String type = "";
+		private String subdir = null;
+		private boolean custom = false;
+
+		private Project(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Version as written in the Makefile, e.g. '3' or '3.5'.
+		 */
+		public String getVersion() {
+			return version;
+		}
+
+		/**
+		 * Version as understood by 'drush pm-download', e.g. '7.x-3.5'.
+		 * Drupal core versions do not include the core prefix.
+		 */
+		public String getFullVersion() {
+			if (version.isEmpty() || isCore() || version.startsWith(core+"-")) {
+				return version;
+			}
+			return core+"-"+version;
+		}
+
+		/**
+		 * Type, or an empty string if the Makefile does not specify it.
+		 */
+		public String getType() {
+			return isCore() ? "core" : type;
+		}
+
+		public String getSubdir() {
+			return (subdir == null) ? defaultSubdir : subdir;
+		}
+
+		public boolean isCore() {
+			return CORE_PROJECT.equals(name) || "core".equals(type);
+		}
+
+		/**
+		 * Return true if the project uses features that are not modeled (patches, custom downloads, etc).
+		 */
+		public boolean isCustom() {
+			return custom;
+		}
+
+		/**
+		 * Directory the project is installed into by 'drush make', relative to the Drupal root.
+		 */
+		public String getDefaultPath() {
+			String base;
+			if ("theme".equals(type)) {
+				base = "sites/all/themes";
+			} else if ("profile".equals(type)) {
+				return "profiles/"+name;
+			} else {
+				base = "sites/all/modules";
+			}
+			String dir = getSubdir();
+			return StringUtils.isEmpty(dir) ? base+"/"+name : base+"/"+dir+"/"+name;
+		}
+
+		/**
+		 * Everything that determines the content of the project.
+		 */
+		public String getSpec() {
+			return getVersion()+"|"+getType()+"|"+getSubdir()+"|"+isCustom();
+		}
+
+	}
+
+}
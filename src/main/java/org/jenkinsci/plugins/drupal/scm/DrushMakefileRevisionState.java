@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2015 Fengtan<https://github.com/fengtan/>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.jenkinsci.plugins.drupal.scm;
+
+import hudson.scm.SCMRevisionState;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Baseline for polling: hash of the Makefile and version every project was resolved into.
+ *
+ * @author Fengtan https://github.com/fengtan/
+ *
+ */
+public class DrushMakefileRevisionState extends SCMRevisionState {
+
+	private final String hash;
+	private final Map<String, String> versions;
+
+	public DrushMakefileRevisionState(String hash, Map<String, String> versions) {
+		this.hash = hash;
+		this.versions = new TreeMap<String, String>(versions);
+	}
+
+	public String getHash() {
+		return hash;
+	}
+
+	/**
+	 * Get resolved versions keyed by project name.
+	 * Projects which could not be resolved are not included.
+	 */
+	public Map<String, String> getVersions() {
+		return Collections.unmodifiableMap(versions);
+	}
+
+}
@@ -34,9 +34,18 @@ import hudson.util.FormValidation;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
-import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.jenkinsci.plugins.drupal.beans.CodebaseFingerprint;
 import org.jenkinsci.plugins.drupal.beans.DrushInvocation;
+import org.jenkinsci.plugins.drupal.beans.DrushSession;
+import org.jenkinsci.plugins.drupal.scm.ReleaseHistory.Release;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
@@ -51,14 +60,19 @@ public class DrushMakefileSCM extends SCM {
 
     // Save Makefile data into this file.  
 	private static final String MAKEFILE_FILE = "drupal.make";
+
+	// Save projects installed by the last checkout into this file.
+	private static final String MANIFEST_FILE = "drupal.make.manifest";
 	
 	private final String makefile;
 	private final String root;
+	private final boolean fetch;
 	
 	@DataBoundConstructor
-	public DrushMakefileSCM(String makefile, String root) {
+	public DrushMakefileSCM(String makefile, String root, boolean fetch) {
 		this.makefile = makefile;
 		this.root = root;
+		this.fetch = fetch;
 	}
 	
 	public String getMakefile() {
@@ -68,33 +82,321 @@ public class DrushMakefileSCM extends SCM {
 	public String getRoot() {
 		return root;
 	}
+
+	public boolean getFetch() {
+		return fetch;
+	}
 		
     @Override
-    public PollingResult compareRemoteRevisionWith(Job<?,?> project, Launcher launcher, FilePath workspace, TaskListener listener, SCMRevisionState _baseline) {
-        return PollingResult.NO_CHANGES;
+    public boolean requiresWorkspaceForPolling() {
+        return false;
+    }
+
+    /**
+     * Record the version every project was resolved into.
+     */
+    @Override
+    public SCMRevisionState calcRevisionsFromBuild(Run<?,?> build, FilePath workspace, Launcher launcher, TaskListener listener) throws IOException, InterruptedException {
+        // Projects fetched by the build are in the lock file, other projects are resolved against release history feeds.
+        MakeLock lock = MakeLock.forJob(build.getParent());
+        lock.load();
+        return new DrushMakefileRevisionState(DrushMakefile.hash(makefile), resolveVersions(DrushMakefile.parse(makefile), lock, true, listener));
+    }
+
+    /**
+     * Poll release history feeds: changes are significant only if a project now resolves into a different version.
+     */
+    @Override
+    public PollingResult compareRemoteRevisionWith(Job<?,?> project, Launcher launcher, FilePath workspace, TaskListener listener, SCMRevisionState _baseline) throws IOException, InterruptedException {
+        if (!(_baseline instanceof DrushMakefileRevisionState)) {
+            return PollingResult.BUILD_NOW;
+        }
+        DrushMakefileRevisionState baseline = (DrushMakefileRevisionState) _baseline;
+        String hash = DrushMakefile.hash(makefile);
+        if (!baseline.getHash().equals(hash)) {
+            listener.getLogger().println("[DRUPAL] Makefile has changed since the last build");
+            return PollingResult.BUILD_NOW;
+        }
+
+        Map<String, String> versions = resolveVersions(DrushMakefile.parse(makefile), null, true, listener);
+        List<String> changed = new ArrayList<String>();
+        for (Map.Entry<String, String> entry: baseline.getVersions().entrySet()) {
+            String version = versions.get(entry.getKey());
+            if (version != null && !version.equals(entry.getValue())) {
+                listener.getLogger().println("[DRUPAL] New release of "+entry.getKey()+": "+entry.getValue()+" -> "+version);
+                changed.add(entry.getKey());
+            }
+        }
+        DrushMakefileRevisionState remote = new DrushMakefileRevisionState(hash, versions);
+        if (changed.isEmpty()) {
+            return new PollingResult(baseline, remote, PollingResult.Change.NONE);
+        }
+
+        // Make sure the next checkout does not reuse locked releases of these projects.
+        MakeLock lock = MakeLock.forJob(project);
+        lock.load();
+        lock.unlock(changed);
+        lock.save();
+        return new PollingResult(baseline, remote, PollingResult.Change.SIGNIFICANT);
+    }
+
+    /**
+     * Resolve projects into versions, using locked releases if any.
+     * Offline, only projects pinned to an exact release are resolved: release history feeds are not looked up.
+     * Projects with custom downloads, and projects which cannot be resolved, are ignored.
+     */
+    private static Map<String, String> resolveVersions(DrushMakefile makefile, MakeLock lock, boolean online, TaskListener listener) {
+        Map<String, String> versions = new TreeMap<String, String>();
+        if (makefile.getCore().isEmpty()) {
+            return versions;
+        }
+        ReleaseHistory history = new ReleaseHistory();
+        for (DrushMakefile.Project project: makefile.getProjects().values()) {
+            if (project.isCustom()) {
+                continue;
+            }
+            Release release = (lock == null) ? null : lock.getRelease(project, makefile.getCore());
+            if (release == null && !online) {
+                if (isPinned(project)) {
+                    versions.put(project.getName(), project.getFullVersion());
+                }
+                continue;
+            }
+            try {
+                if (release == null) {
+                    release = history.resolve(project, makefile.getCore());
+                }
+                versions.put(project.getName(), release.getVersion());
+            } catch (IOException e) {
+                listener.getLogger().println("[DRUPAL] Unable to resolve "+project.getName()+": "+e.getMessage());
+            }
+        }
+        return versions;
     }
 	
+    /**
+     * Return true if a project is pinned to an exact release, i.e. it resolves into the same release whatever the feeds say.
+     */
+    private static boolean isPinned(DrushMakefile.Project project) {
+        String version = project.getVersion();
+        return !version.isEmpty() && !StringUtils.isNumeric(version) && !version.endsWith("-dev");
+    }
+
+    /**
+     * Key of the code base a Makefile builds into: hash of the Makefile and version of every project.
+     * Return null if the code base cannot be known in advance (complex Makefiles, projects which cannot be resolved),
+     * in which case it must not be cached: the same Makefile may build into a different code base next time.
+     */
+    private static String getBuildKey(DrushMakefile makefile, String hash, Map<String, String> versions) {
+        if (versions == null || versions.size() != makefile.getProjects().size()) {
+            return null;
+        }
+        return CodebaseFingerprint.digest(hash+"\n"+versions);
+    }
+
     @Override
     public void checkout(Run<?,?> build, Launcher launcher, FilePath workspace, TaskListener listener, File changelogFile, SCMRevisionState baseline) throws IOException, InterruptedException {
+	    // Everything happens on the node holding the workspace.
+	    FilePath rootPath = workspace.child(root);
+
+	    // Delete trash left behind by a previous checkout, in the background.
+	    TrashReaper.reap(workspace);
+
+	    // Save Makefile into local file.
+	    FilePath makefilePath = workspace.child(MAKEFILE_FILE);
+	    listener.getLogger().println("[DRUPAL] Saving Makefile into "+makefilePath.getRemote());
+	    makefilePath.write(makefile, "UTF-8");
+
+	    String hash = DrushMakefile.hash(makefile);
+	    DrushMakefile parsed = DrushMakefile.parse(makefile);
+	    FilePath manifestPath = workspace.child(MANIFEST_FILE);
+	    MakeManifest manifest = MakeManifest.load(manifestPath);
+	    DrushInvocation drush = new DrushInvocation(rootPath, workspace, launcher, listener, build.getEnvironment(listener), DrushSession.forBuild(build));
+	    MakeLock lock = MakeLock.forJob(build.getParent());
+
+	    // Resolve projects to find out which code base the Makefile builds into.
+	    // Release history feeds are only looked up if projects are fetched: 'drush make' alone must not depend on them.
+	    Map<String, String> versions = null;
+	    if (ProjectFetcher.canFetch(parsed)) {
+		    try {
+			    if (fetch) {
+				    lock.load();
+			    }
+			    versions = resolveVersions(parsed, fetch ? lock : null, fetch, listener);
+		    } catch (IOException e) {
+			    listener.getLogger().println("[DRUPAL] Unable to resolve projects: "+e.getMessage());
+		    }
+	    }
+	    String key = getBuildKey(parsed, hash, versions);
+
+	    // Only refetch projects that changed since the last checkout, if possible.
+	    if (manifest != null && rootPath.child("index.php").exists() && manifest.canUpdate(parsed)) {
+		    if (!update(drush, lock, parsed, hash, versions, manifest, rootPath, listener)) {
+			    listener.getLogger().println("[DRUPAL] Incremental update failed, falling back to a full build");
+		    } else {
+			    MakeManifest.build(parsed, hash, versions, rootPath).save(manifestPath);
+			    return;
+		    }
+	    }
+
 	    // If necessary, delete destination directory so we can install Drupal (unless Drupal root is workspace root).
-	    File rootDir = new File(workspace.getRemote(), root);
-	    FilePath rootPath = new FilePath(rootDir);
-	    if (rootDir.exists() && !rootPath.getRemote().equals(workspace.getRemote())) {
-		    listener.getLogger().println("[DRUPAL] Deleting destination directory "+rootDir.getAbsolutePath());
-		    // Make sure drupal/sites/defaults is writable so we can delete its contents.
-		    File defaultDir = new File(rootDir, "sites/default");
-		    defaultDir.setWritable(true);
-		    FileUtils.deleteDirectory(rootDir);
+	    if (rootPath.exists() && !rootPath.getRemote().equals(workspace.getRemote())) {
+		    // The directory is moved out of the way right away, and deleted in the background.
+		    listener.getLogger().println("[DRUPAL] Deleting destination directory "+rootPath.getRemote());
+		    TrashReaper.trash(rootPath, workspace);
 	    }
 
-	    // Save Makefile into local file.
-	    File makefileFile = new File(workspace.getRemote(), MAKEFILE_FILE);
-	    listener.getLogger().println("[DRUPAL] Saving Makefile into "+makefileFile.getAbsolutePath());
-	    FileUtils.writeStringToFile(makefileFile, makefile);
+	    // Restore Drupal from the cache if this Makefile has already been built on this node, with the same releases.
+	    DrushMakeCache cache = DrushMakeCache.forNode(workspace);
+	    if (key != null && cache.contains(key)) {
+		    listener.getLogger().println("[DRUPAL] Makefile has already been built on this node, restoring code base "+key);
+		    TreeCloner.Method method = cache.restore(key, rootPath);
+		    listener.getLogger().println("[DRUPAL] Code base restored using "+method.name().toLowerCase());
+		    MakeManifest.build(parsed, hash, versions, rootPath).save(manifestPath);
+		    return;
+	    }
+
+	    // Otherwise restore Drupal from a snapshot stored on the controller, if any.
+	    if (key != null && SnapshotStore.ENABLED && SnapshotStore.get().contains(key)) {
+		    listener.getLogger().println("[DRUPAL] Restoring code base "+key+" from the controller");
+		    try {
+			    SnapshotStore.get().restore(key, rootPath);
+			    cache.store(key, rootPath);
+			    MakeManifest.build(parsed, hash, versions, rootPath).save(manifestPath);
+			    return;
+		    } catch (IOException e) {
+			    listener.getLogger().println("[DRUPAL] Unable to restore code base from the controller: "+e.getMessage());
+			    if (rootPath.exists()) {
+				    TrashReaper.trash(rootPath, workspace);
+			    }
+		    }
+	    }
+
+	    // Make Drupal: fetch projects concurrently if possible, otherwise use 'drush make'.
+	    boolean fetched = false;
+	    if (fetch && ProjectFetcher.canFetch(parsed) && !rootPath.getRemote().equals(workspace.getRemote())) {
+		    fetched = fetch(lock, parsed, parsed.getProjects().values(), null, rootPath, listener);
+		    if (!fetched && rootPath.exists()) {
+			    TrashReaper.trash(rootPath, workspace);
+		    }
+	    }
+	    if (!fetched) {
+		    drush.make(new File(makefilePath.getRemote()));
+	    }
+
+	    // Cache the code base for the next builds.
+	    if (rootPath.child("index.php").exists()) {
+		    MakeManifest.build(parsed, hash, versions, rootPath).save(manifestPath);
+		    if (key == null) {
+			    listener.getLogger().println("[DRUPAL] Releases of the Makefile are not known in advance, not caching code base");
+			    return;
+		    }
+		    listener.getLogger().println("[DRUPAL] Caching code base "+key);
+		    cache.store(key, rootPath);
+		    if (SnapshotStore.ENABLED) {
+			    try {
+				    int count = SnapshotStore.get().store(key, rootPath);
+				    listener.getLogger().println("[DRUPAL] Code base saved on the controller ("+count+" new files)");
+			    } catch (IOException e) {
+				    listener.getLogger().println("[DRUPAL] Unable to save code base on the controller: "+e.getMessage());
+			    }
+		    }
+	    } else {
+		    manifestPath.delete();
+	    }
+    }
 
-	    // Make Drupal.
-	    DrushInvocation drush = new DrushInvocation(rootPath, workspace, launcher, listener, build.getEnvironment(listener));
-	    drush.make(makefileFile);
+    /**
+     * Update an existing Drupal root into a Makefile: download added and changed projects, delete removed projects.
+     * Projects which now resolve into a different release, or whose release is no longer locked, count as changed.
+     * Everything else in the Drupal root is left alone.
+     */
+    private boolean update(DrushInvocation drush, MakeLock lock, DrushMakefile makefile, String hash, Map<String, String> versions, MakeManifest manifest, FilePath rootPath, TaskListener listener) throws IOException, InterruptedException {
+	    if (versions == null || versions.size() != makefile.getProjects().size()) {
+		    listener.getLogger().println("[DRUPAL] Unable to resolve every project of the Makefile");
+		    return false;
+	    }
+
+	    // Find projects changed: they are downloaded again.
+	    List<DrushMakefile.Project> changed = new ArrayList<DrushMakefile.Project>();
+	    for (DrushMakefile.Project project: makefile.getProjects().values()) {
+		    String name = project.getName();
+		    boolean unlocked = fetch && lock.getRelease(project, makefile.getCore()) == null;
+		    if (!project.getSpec().equals(manifest.getSpec(name)) || !versions.get(name).equals(manifest.getVersion(name)) || unlocked) {
+			    if (project.isCore()) {
+				    // Drupal core contains the other projects: it can only be replaced by a full build.
+				    listener.getLogger().println("[DRUPAL] Drupal core has changed since the last checkout");
+				    return false;
+			    }
+			    if (manifest.getVersion(name) != null && !versions.get(name).equals(manifest.getVersion(name))) {
+				    listener.getLogger().println("[DRUPAL] New release of "+name+": "+manifest.getVersion(name)+" -> "+versions.get(name));
+			    }
+			    changed.add(project);
+		    }
+	    }
+	    if (changed.isEmpty() && manifest.getHash().equals(hash)) {
+		    listener.getLogger().println("[DRUPAL] Makefile has not changed since the last checkout");
+		    return true;
+	    }
+
+	    // Delete projects removed from the Makefile.
+	    for (String name: manifest.getProjectNames()) {
+		    if (!makefile.getProjects().containsKey(name) && manifest.getPath(name) != null) {
+			    listener.getLogger().println("[DRUPAL] Deleting project "+name);
+			    rootPath.child(manifest.getPath(name)).deleteRecursive();
+		    }
+	    }
+
+	    // Delete projects changed.
+	    for (DrushMakefile.Project project: changed) {
+		    if (manifest.getPath(project.getName()) != null) {
+			    rootPath.child(manifest.getPath(project.getName())).deleteRecursive();
+		    }
+	    }
+
+	    // Download projects added or changed.
+	    if (fetch) {
+		    return fetch(lock, makefile, changed, manifest, rootPath, listener);
+	    }
+	    for (DrushMakefile.Project project: changed) {
+		    FilePath parentPath = rootPath.child(manifest.getPath(project)).getParent();
+		    parentPath.mkdirs();
+		    String version = project.getFullVersion();
+		    listener.getLogger().println("[DRUPAL] Downloading project "+project.getName()+" "+version);
+		    if (!drush.download(version.isEmpty() ? project.getName() : project.getName()+"-"+version, parentPath.getRemote())) {
+			    return false;
+		    }
+	    }
+	    return true;
+    }
+
+    /**
+     * Fetch projects concurrently.
+     * Projects go where the manifest says, or to their default location if there is no manifest.
+     * Releases come from the lock file, so only projects not locked yet are looked up in release history feeds.
+     */
+    private boolean fetch(MakeLock lock, DrushMakefile makefile, Collection<DrushMakefile.Project> projects, MakeManifest manifest, FilePath rootPath, TaskListener listener) throws InterruptedException {
+	    Map<String, String> paths = new HashMap<String, String>();
+	    for (DrushMakefile.Project project: projects) {
+		    if (project.isCore()) {
+			    paths.put(project.getName(), "");
+		    } else {
+			    paths.put(project.getName(), (manifest == null) ? project.getDefaultPath() : manifest.getPath(project));
+		    }
+	    }
+	    try {
+		    ProjectFetcher fetcher = new ProjectFetcher(new ReleaseHistory(), listener);
+		    listener.getLogger().println("[DRUPAL] Fetching "+projects.size()+" projects");
+		    lock.load();
+		    Map<String, Release> releases = lock.resolve(makefile, fetcher, listener);
+		    releases.keySet().retainAll(paths.keySet());
+		    fetcher.fetch(rootPath, releases, paths);
+		    lock.save();
+		    return true;
+	    } catch (IOException e) {
+		    listener.getLogger().println("[DRUPAL] Unable to fetch projects: "+e.getMessage());
+		    return false;
+	    }
     }
 	
     @Override
@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2015 Fengtan<https://github.com/fengtan/>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.jenkinsci.plugins.drupal.scm;
+
+import hudson.model.Job;
+import hudson.model.TaskListener;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.apache.commons.io.IOUtils;
+import org.jenkinsci.plugins.drupal.scm.DrushMakefile.Project;
+import org.jenkinsci.plugins.drupal.scm.ReleaseHistory.Release;
+
+/**
+ * Releases a Makefile was resolved into: exact version, download URL and checksum of every project.
+ *
+ * Stored with the job and reused as long as the specification of a project does not change,
+ * so checkouts do not need to look up release history feeds.
+ *
+ * Checkouts and polling update the same file concurrently: it is read and written under a lock, and only the
+ * entries changed since it was loaded are written back, into a temporary file moved into place.
+ *
+ * @author Fengtan https://github.com/fengtan/
+ *
+ */
+public class MakeLock {
+
+	// Lock file, relative to the root directory of the job.
+	private static final String LOCK_FILE = "drupal.make.lock";
+
+	private static final String CORE = "core";
+	private static final String[] FIELDS = {"spec", "version", "url", "md5"};
+
+	// Serialize reads and writes of lock files between executors and polling threads.
+	private static final Object LOCK = new Object();
+
+	private final File file;
+	private String core = "";
+	// Fields of every project, keyed by name.
+	private final Map<String, String[]> entries = new TreeMap<String, String[]>();
+	// Entries changed since the last load or save, keyed by name: null means removed.
+	private final Map<String, String[]> changes = new TreeMap<String, String[]>();
+	private String coreChange = null;
+
+	public MakeLock(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Get the lock of a job.
+	 */
+	public static MakeLock forJob(Job<?,?> job) {
+		return new MakeLock(new File(job.getRootDir(), LOCK_FILE));
+	}
+
+	/**
+	 * Load the lock, if it exists.
+	 */
+	public void load() throws IOException {
+		synchronized (LOCK) {
+			core = read(entries);
+		}
+		changes.clear();
+		coreChange = null;
+	}
+
+	/**
+	 * Save the entries changed since the lock was loaded, keeping changes other threads saved in the meantime.
+	 */
+	public void save() throws IOException {
+		synchronized (LOCK) {
+			Map<String, String[]> saved = new TreeMap<String, String[]>();
+			String savedCore = read(saved);
+			if (coreChange != null) {
+				savedCore = coreChange;
+			}
+			for (Map.Entry<String, String[]> change: changes.entrySet()) {
+				if (change.getValue() == null) {
+					saved.remove(change.getKey());
+				} else {
+					saved.put(change.getKey(), change.getValue());
+				}
+			}
+
+			Properties properties = new Properties();
+			properties.setProperty(CORE, savedCore);
+			for (Map.Entry<String, String[]> entry: saved.entrySet()) {
+				for (int i = 0; i < FIELDS.length; i++) {
+					if (entry.getValue()[i] != null) {
+						properties.setProperty(entry.getKey()+"."+FIELDS[i], entry.getValue()[i]);
+					}
+				}
+			}
+			File tmp = new File(file.getPath()+".tmp");
+			OutputStream out = new FileOutputStream(tmp);
+			try {
+				properties.store(out, "Releases the Makefile was resolved into");
+			} finally {
+				IOUtils.closeQuietly(out);
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+			core = savedCore;
+			entries.clear();
+			entries.putAll(saved);
+			changes.clear();
+			coreChange = null;
+		}
+	}
+
+	/**
+	 * Read the lock file into a map of entries, and return the core it was resolved against.
+	 */
+	private String read(Map<String, String[]> target) throws IOException {
+		target.clear();
+		if (!file.exists()) {
+			return "";
+		}
+		Properties properties = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			properties.load(in);
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+		for (String key: properties.stringPropertyNames()) {
+			int dot = key.lastIndexOf('.');
+			if (dot <= 0) {
+				continue;
+			}
+			String name = key.substring(0, dot);
+			String[] entry = target.get(name);
+			if (entry == null) {
+				entry = new String[FIELDS.length];
+				target.put(name, entry);
+			}
+			for (int i = 0; i < FIELDS.length; i++) {
+				if (FIELDS[i].equals(key.substring(dot + 1))) {
+					entry[i] = properties.getProperty(key);
+				}
+			}
+		}
+		return properties.getProperty(CORE, "");
+	}
+
+	/**
+	 * Get the locked release of a project, or null if the project is not locked or if its specification changed.
+	 */
+	public Release getRelease(Project project, String core) {
+		String[] entry = entries.get(project.getName());
+		if (!this.core.equals(core) || entry == null || entry[0] == null || !entry[0].equals(project.getSpec())) {
+			return null;
+		}
+		for (String field: entry) {
+			if (field == null) {
+				return null;
+			}
+		}
+		return new Release(project.getName()+" "+entry[1], entry[1], entry[2], entry[3]);
+	}
+
+	/**
+	 * Remove projects from the lock, so they are resolved again on the next checkout.
+	 */
+	public void unlock(Collection<String> names) {
+		for (String name: names) {
+			entries.remove(name);
+			changes.put(name, null);
+		}
+	}
+
+	/**
+	 * Resolve every project of a Makefile, using the lock when possible, and update the lock accordingly.
+	 * Only projects which are not locked yet (or whose specification changed) are looked up in release history feeds.
+	 */
+	public Map<String, Release> resolve(DrushMakefile makefile, ProjectFetcher fetcher, TaskListener listener) throws IOException, InterruptedException {
+		Map<String, Release> releases = new TreeMap<String, Release>();
+		List<Project> unlocked = new ArrayList<Project>();
+		for (Project project: makefile.getProjects().values()) {
+			Release release = getRelease(project, makefile.getCore());
+			if (release == null) {
+				unlocked.add(project);
+			} else {
+				releases.put(project.getName(), release);
+			}
+		}
+		if (!unlocked.isEmpty()) {
+			listener.getLogger().println("[DRUPAL] Resolving "+unlocked.size()+" projects not in the lock file");
+			releases.putAll(fetcher.resolve(makefile, unlocked));
+		}
+
+		// Projects removed from the Makefile are removed from the lock.
+		// Only entries which were resolved again are recorded as changes, so they do not overwrite releases unlocked meanwhile.
+		if (!core.equals(makefile.getCore())) {
+			core = makefile.getCore();
+			coreChange = core;
+		}
+		for (String name: new ArrayList<String>(entries.keySet())) {
+			if (!makefile.getProjects().containsKey(name)) {
+				entries.remove(name);
+				changes.put(name, null);
+			}
+		}
+		for (Project project: unlocked) {
+			Release release = releases.get(project.getName());
+			String[] entry = new String[] {project.getSpec(), release.getVersion(), release.getUrl(), release.getMd5()};
+			entries.put(project.getName(), entry);
+			changes.put(project.getName(), entry);
+		}
+		return releases;
+	}
+
+}
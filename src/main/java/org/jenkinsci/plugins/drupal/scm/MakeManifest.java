@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2015 Fengtan<https://github.com/fengtan/>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.jenkinsci.plugins.drupal.scm;
+
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.jenkinsci.plugins.drupal.scm.DrushMakefile.Project;
+
+/**
+ * Projects installed by the last checkout: specification (version, type, etc), release and location of every project.
+ *
+ * @author Fengtan https://github.com/fengtan/
+ *
+ */
+public class MakeManifest {
+
+	private static final String HASH = "hash";
+	private static final String CORE = "core";
+	private static final String SPEC_PREFIX = "spec.";
+	private static final String PATH_PREFIX = "path.";
+	private static final String VERSION_PREFIX = "version.";
+
+	private final String hash;
+	private final String core;
+	// Specification and location of every project, keyed by name.
+	private final Map<String, String> specs = new TreeMap<String, String>();
+	private final Map<String, String> paths = new TreeMap<String, String>();
+	// Version every project was resolved into, if known.
+	private final Map<String, String> versions = new TreeMap<String, String>();
+
+	private MakeManifest(String hash, String core) {
+		this.hash = hash;
+		this.core = core;
+	}
+
+	/**
+	 * Build the manifest of a Drupal root made from a Makefile.
+	 *
+	 * @param versions Version every project was resolved into, or null if unknown.
+	 */
+	public static MakeManifest build(DrushMakefile makefile, String hash, Map<String, String> versions, FilePath rootPath) throws IOException, InterruptedException {
+		// The Makefile may not say whether a project is a module or a theme: find out where such projects were installed.
+		List<String> candidates = new ArrayList<String>();
+		for (Project project: makefile.getProjects().values()) {
+			if (!project.isCore() && StringUtils.isEmpty(project.getType())) {
+				candidates.add(project.getDefaultPath());
+				candidates.add(getThemePath(project));
+			}
+		}
+		Set<String> existing = candidates.isEmpty() ? Collections.<String>emptySet() : rootPath.act(new Exists(candidates));
+
+		MakeManifest manifest = new MakeManifest(hash, makefile.getCore());
+		for (Project project: makefile.getProjects().values()) {
+			manifest.specs.put(project.getName(), project.getSpec());
+			if (!project.isCore()) {
+				manifest.paths.put(project.getName(), locate(project, existing));
+			}
+		}
+		if (versions != null) {
+			manifest.versions.putAll(versions);
+		}
+		return manifest;
+	}
+
+	/**
+	 * Find where a project was installed, relative to the Drupal root.
+	 */
+	private static String locate(Project project, Set<String> existing) {
+		String path = project.getDefaultPath();
+		if (!existing.contains(path) && StringUtils.isEmpty(project.getType()) && existing.contains(getThemePath(project))) {
+			return getThemePath(project);
+		}
+		return path;
+	}
+
+	private static String getThemePath(Project project) {
+		return project.getDefaultPath().replaceFirst("^sites/all/modules/", "sites/all/themes/");
+	}
+
+	/**
+	 * Load a manifest, or return null if it does not exist.
+	 */
+	public static MakeManifest load(FilePath file) throws IOException, InterruptedException {
+		if (!file.exists()) {
+			return null;
+		}
+		Properties properties = new Properties();
+		InputStream in = file.read();
+		try {
+			properties.load(in);
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+		MakeManifest manifest = new MakeManifest(properties.getProperty(HASH, ""), properties.getProperty(CORE, ""));
+		for (String key: properties.stringPropertyNames()) {
+			if (key.startsWith(SPEC_PREFIX)) {
+				manifest.specs.put(key.substring(SPEC_PREFIX.length()), properties.getProperty(key));
+			} else if (key.startsWith(PATH_PREFIX)) {
+				manifest.paths.put(key.substring(PATH_PREFIX.length()), properties.getProperty(key));
+			} else if (key.startsWith(VERSION_PREFIX)) {
+				manifest.versions.put(key.substring(VERSION_PREFIX.length()), properties.getProperty(key));
+			}
+		}
+		return manifest;
+	}
+
+	public void save(FilePath file) throws IOException, InterruptedException {
+		Properties properties = new Properties();
+		properties.setProperty(HASH, hash);
+		properties.setProperty(CORE, core);
+		for (Map.Entry<String, String> spec: specs.entrySet()) {
+			properties.setProperty(SPEC_PREFIX+spec.getKey(), spec.getValue());
+		}
+		for (Map.Entry<String, String> path: paths.entrySet()) {
+			properties.setProperty(PATH_PREFIX+path.getKey(), path.getValue());
+		}
+		for (Map.Entry<String, String> version: versions.entrySet()) {
+			properties.setProperty(VERSION_PREFIX+version.getKey(), version.getValue());
+		}
+		OutputStream out = file.write();
+		try {
+			properties.store(out, "Projects installed by the last checkout");
+		} finally {
+			IOUtils.closeQuietly(out);
+		}
+	}
+
+	public String getHash() {
+		return hash;
+	}
+
+	/**
+	 * Get names of projects installed.
+	 */
+	public Iterable<String> getProjectNames() {
+		return specs.keySet();
+	}
+
+	/**
+	 * Get specification of a project, or null if it is not installed.
+	 */
+	public String getSpec(String name) {
+		return specs.get(name);
+	}
+
+	/**
+	 * Get version a project was resolved into, or null if it is not installed or if the version is unknown.
+	 */
+	public String getVersion(String name) {
+		return versions.get(name);
+	}
+
+	/**
+	 * Get versions projects were resolved into, keyed by name.
+	 */
+	public Map<String, String> getVersions() {
+		return Collections.unmodifiableMap(versions);
+	}
+
+	/**
+	 * Get location of a project relative to the Drupal root, or null if it is not installed.
+	 */
+	public String getPath(String name) {
+		return paths.get(name);
+	}
+
+	/**
+	 * Get location a project should be downloaded into, relative to the Drupal root.
+	 * Changed projects are replaced where they were installed, unless their type or subdirectory changed.
+	 */
+	public String getPath(Project project) {
+		String spec = specs.get(project.getName());
+		String path = paths.get(project.getName());
+		if (spec == null || path == null) {
+			return project.getDefaultPath();
+		}
+		boolean moved = !StringUtils.substringAfter(spec, "|").equals(StringUtils.substringAfter(project.getSpec(), "|"));
+		return moved ? project.getDefaultPath() : path;
+	}
+
+	/**
+	 * Return true if a Drupal root built from this manifest can be updated into the given Makefile, project by project.
+	 * Drupal core, complex Makefiles and YAML Makefiles (no INI 'core' key) require a full build.
+	 */
+	public boolean canUpdate(DrushMakefile makefile) {
+		if (makefile.isComplex() || makefile.getCore().isEmpty() || !core.equals(makefile.getCore())) {
+			return false;
+		}
+		for (Project project: makefile.getProjects().values()) {
+			if (project.isCore() && !project.getSpec().equals(specs.get(project.getName()))) {
+				return false;
+			}
+		}
+		for (String name: specs.keySet()) {
+			if (!makefile.getProjects().containsKey(name) && !paths.containsKey(name)) {
+				// Drupal core was removed from the Makefile.
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Get which of the given paths (relative to the Drupal root) exist, on the node.
+	 */
+	private static class Exists implements FileCallable<Set<String>> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final List<String> paths;
+
+		private Exists(List<String> paths) {
+			this.paths = paths;
+		}
+
+		@Override
+		public Set<String> invoke(File rootDir, VirtualChannel channel) {
+			Set<String> existing = new HashSet<String>();
+			for (String path: paths) {
+				if (new File(rootDir, path).exists()) {
+					existing.add(path);
+				}
+			}
+			return existing;
+		}
+
+	}
+
+}
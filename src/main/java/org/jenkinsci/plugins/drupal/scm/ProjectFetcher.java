@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2015 Fengtan<https://github.com/fengtan/>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.jenkinsci.plugins.drupal.scm;
+
+import hudson.FilePath;
+import hudson.FilePath.TarCompression;
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.jenkinsci.plugins.drupal.scm.DrushMakefile.Project;
+import org.jenkinsci.plugins.drupal.scm.ReleaseHistory.Release;
+
+/**
+ * Resolve and fetch projects of a Makefile on a bounded pool of threads.
+ *
+ * Archives are extracted while they are downloaded, into a staging directory next to their destination,
+ * and then moved into place: the resulting tree is the same as what 'drush make' produces.
+ *
+ * @author Fengtan https://github.com/fengtan/
+ *
+ */
+public class ProjectFetcher {
+
+	// Number of projects fetched concurrently.
+	private static final int THREADS = Integer.getInteger(ProjectFetcher.class.getName()+".threads", 8);
+
+	private final ReleaseHistory history;
+	private final TaskListener listener;
+
+	public ProjectFetcher(ReleaseHistory history, TaskListener listener) {
+		this.history = history;
+		this.listener = listener;
+	}
+
+	/**
+	 * Return true if every project of a Makefile can be fetched without 'drush make'.
+	 */
+	public static boolean canFetch(DrushMakefile makefile) {
+		return !makefile.isComplex() && StringUtils.isNotEmpty(makefile.getCore());
+	}
+
+	/**
+	 * Resolve projects into releases, keyed by project name.
+	 */
+	public Map<String, Release> resolve(final DrushMakefile makefile, Collection<Project> projects) throws IOException, InterruptedException {
+		Map<String, Callable<Release>> tasks = new TreeMap<String, Callable<Release>>();
+		for (final Project project: projects) {
+			tasks.put(project.getName(), new Callable<Release>() {
+				@Override
+				public Release call() throws IOException {
+					return history.resolve(project, makefile.getCore());
+				}
+			});
+		}
+		return run(tasks);
+	}
+
+	/**
+	 * Fetch releases into a Drupal root (possibly on an agent).
+	 * Drupal core (if any) is fetched first since it creates the Drupal root, then other projects are fetched concurrently.
+	 *
+	 * @param paths Destination of every project, relative to the Drupal root (empty for Drupal core).
+	 */
+	public void fetch(final FilePath rootPath, Map<String, Release> releases, final Map<String, String> paths) throws IOException, InterruptedException {
+		Map<String, Callable<Void>> tasks = new TreeMap<String, Callable<Void>>();
+		for (final Map.Entry<String, Release> entry: releases.entrySet()) {
+			final String path = paths.get(entry.getKey());
+			if (StringUtils.isEmpty(path)) {
+				fetch(entry.getValue(), rootPath);
+				continue;
+			}
+			tasks.put(entry.getKey(), new Callable<Void>() {
+				@Override
+				public Void call() throws IOException, InterruptedException {
+					fetch(entry.getValue(), rootPath.child(path));
+					return null;
+				}
+			});
+		}
+		run(tasks);
+	}
+
+	/**
+	 * Download a release and extract it into a directory, replacing the directory if it already exists.
+	 * Archives are downloaded by the controller and streamed to the node.
+	 */
+	protected void fetch(Release release, FilePath dir) throws IOException, InterruptedException {
+		listener.getLogger().println("[DRUPAL] Fetching "+release.getName());
+		FilePath staging = dir.getParent().child("."+dir.getName()+".fetch");
+		staging.deleteRecursive();
+		staging.mkdirs();
+		try {
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			InputStream in = new DrainingDigestInputStream(ReleaseHistory.open(new URL(release.getUrl())).getInputStream(), digest);
+			// untarFrom() closes the stream.
+			staging.untarFrom(in, TarCompression.GZIP);
+			String md5 = Hex.encodeHexString(digest.digest());
+			if (StringUtils.isNotEmpty(release.getMd5()) && !release.getMd5().equalsIgnoreCase(md5)) {
+				throw new IOException("Checksum mismatch for "+release.getUrl()+": expected "+release.getMd5()+", got "+md5);
+			}
+			// Archives contain a single top-level directory, e.g. 'views' or 'drupal-7.38'.
+			List<FilePath> children = staging.list();
+			if (children == null || children.size() != 1 || !children.get(0).isDirectory()) {
+				throw new IOException("Unexpected content in "+release.getUrl());
+			}
+			dir.deleteRecursive();
+			children.get(0).renameTo(dir);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		} finally {
+			staging.deleteRecursive();
+		}
+	}
+
+	/**
+	 * Run tasks on a bounded pool of threads and collect their results.
+	 * The first failure cancels the remaining tasks.
+	 */
+	private <T> Map<String, T> run(Map<String, Callable<T>> tasks) throws IOException, InterruptedException {
+		Map<String, T> results = new TreeMap<String, T>();
+		if (tasks.isEmpty()) {
+			return results;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(THREADS, tasks.size())));
+		try {
+			List<String> names = new ArrayList<String>(tasks.keySet());
+			List<Future<T>> futures = new ArrayList<Future<T>>();
+			for (String name: names) {
+				futures.add(executor.submit(tasks.get(name)));
+			}
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					results.put(names.get(i), futures.get(i).get());
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof IOException) {
+						throw (IOException) cause;
+					}
+					throw new IOException("Unable to fetch "+names.get(i), cause);
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		return results;
+	}
+
+	/**
+	 * Digest stream which reads whatever is left before it is closed, so the digest covers the whole archive
+	 * even if the tar reader stops at the end-of-archive marker.
+	 */
+	private static class DrainingDigestInputStream extends DigestInputStream {
+
+		private boolean closed = false;
+
+		private DrainingDigestInputStream(InputStream in, MessageDigest digest) {
+			super(in, digest);
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				IOUtils.skip(this, Long.MAX_VALUE);
+			} finally {
+				super.close();
+			}
+		}
+
+	}
+
+}
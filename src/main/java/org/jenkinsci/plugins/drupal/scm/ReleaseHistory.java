@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) 2015 Fengtan<https://github.com/fengtan/>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.jenkinsci.plugins.drupal.scm;
+
+import hudson.ProxyConfiguration;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.jenkinsci.plugins.drupal.scm.DrushMakefile.Project;
+
+/**
+ * Resolve projects of a Makefile into releases, using release history feeds (the same feeds 'drush make' uses).
+ *
+ * The location of the feeds can be changed to a mirror, e.g. file:///var/mirror/release-history.
+ *
+ * Feeds are cached in memory and shared by all jobs: a feed is downloaded again only once it is older than cacheTtl,
+ * and then using a conditional request (If-None-Match / If-Modified-Since) so unchanged feeds are not transferred.
+ *
+ * @author Fengtan https://github.com/fengtan/
+ *
+ */
+public class ReleaseHistory {
+
+	// Location of release history feeds: <url>/<project>/<core>.
+	public static final String DEFAULT_URL = System.getProperty(ReleaseHistory.class.getName()+".url", "https://updates.drupal.org/release-history");
+
+	// Feeds younger than this (in milliseconds) are not even checked for changes.
+	public static final long DEFAULT_CACHE_TTL = Long.getLong(ReleaseHistory.class.getName()+".cacheTtl", 300000);
+
+	// Location and TTL in effect, which tests may change.
+	private static volatile String defaultUrl = DEFAULT_URL;
+	private static volatile long cacheTtl = DEFAULT_CACHE_TTL;
+
+	// Feeds keyed by URL, shared by all jobs.
+	private static final ConcurrentMap<String, Feed> FEEDS = new ConcurrentHashMap<String, Feed>();
+
+	private final String url;
+
+	public ReleaseHistory() {
+		this(defaultUrl);
+	}
+
+	/**
+	 * Change the location of feeds used by default, e.g. to a local server in tests.
+	 */
+	static void setDefaultUrl(String url) {
+		defaultUrl = url;
+	}
+
+	/**
+	 * Change how long feeds are cached, in milliseconds.
+	 */
+	static void setCacheTtl(long ttl) {
+		cacheTtl = ttl;
+	}
+
+	public ReleaseHistory(String url) {
+		this.url = StringUtils.removeEnd(url, "/");
+	}
+
+	/**
+	 * Get URL of the release history feed of a project.
+	 */
+	public URL getFeedUrl(String name, String core) throws IOException {
+		return new URL(url+"/"+name+"/"+core);
+	}
+
+	/**
+	 * Resolve a project into a release.
+	 */
+	public Release resolve(Project project, String core) throws IOException {
+		return select(project, getReleases(project.getName(), core));
+	}
+
+	/**
+	 * Get releases of a project, newest first.
+	 */
+	public List<Release> getReleases(String name, String core) throws IOException {
+		URL feedUrl = getFeedUrl(name, core);
+		Feed feed = FEEDS.get(feedUrl.toString());
+		if (feed == null) {
+			Feed created = new Feed();
+			feed = FEEDS.putIfAbsent(feedUrl.toString(), created);
+			if (feed == null) {
+				feed = created;
+			}
+		}
+		// Concurrent lookups of the same feed wait for a single download.
+		synchronized (feed) {
+			if (feed.releases == null || System.currentTimeMillis() - feed.checked > cacheTtl) {
+				feed.refresh(feedUrl, name);
+			}
+			return feed.releases;
+		}
+	}
+
+	/**
+	 * Open a connection, using the proxy configured in Jenkins for HTTP URLs.
+	 */
+	protected static URLConnection open(URL url) throws IOException {
+		if (url.getProtocol().startsWith("http")) {
+			return ProxyConfiguration.open(url);
+		}
+		return url.openConnection();
+	}
+
+	/**
+	 * Parse releases of a release history feed, newest first.
+	 */
+	protected static List<Release> parse(InputStream in) throws XMLStreamException {
+		List<Release> releases = new ArrayList<Release>();
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		// Feeds come from the network: do not resolve DTDs or external entities.
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		XMLStreamReader reader = factory.createXMLStreamReader(in);
+		Release release = null;
+		String recommended = "";
+		while (reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				String element = reader.getLocalName();
+				if ("release".equals(element)) {
+					release = new Release();
+				} else if ("recommended_major".equals(element) && release == null) {
+					recommended = reader.getElementText().trim();
+				} else if (release != null) {
+					if ("name".equals(element)) {
+						release.name = reader.getElementText().trim();
+					} else if ("version".equals(element)) {
+						release.version = reader.getElementText().trim();
+					} else if ("version_major".equals(element)) {
+						release.major = reader.getElementText().trim();
+					} else if ("version_extra".equals(element)) {
+						release.extra = reader.getElementText().trim();
+					} else if ("download_link".equals(element)) {
+						release.url = reader.getElementText().trim();
+					} else if ("mdhash".equals(element)) {
+						release.md5 = reader.getElementText().trim();
+					}
+				}
+			} else if (event == XMLStreamConstants.END_ELEMENT && "release".equals(reader.getLocalName())) {
+				releases.add(release);
+				release = null;
+			}
+		}
+		reader.close();
+		for (Release candidate: releases) {
+			candidate.recommended = candidate.major.equals(recommended);
+		}
+		return releases;
+	}
+
+	/**
+	 * Select the release matching the version of a project, the same way 'drush make' does:
+	 * - no version: latest stable release of the recommended major version.
+	 * - major version only (e.g. '3'): latest stable release of this major version.
+	 * - any other version (e.g. '3.5' or '3.x-dev'): this exact version.
+	 */
+	protected static Release select(Project project, List<Release> releases) throws IOException {
+		String version = project.getVersion();
+		String fullVersion = project.getFullVersion();
+		Release fallback = null;
+		for (Release release: releases) {
+			if (StringUtils.isEmpty(release.url)) {
+				continue;
+			}
+			if (version.isEmpty()) {
+				if (release.recommended && release.extra.isEmpty()) {
+					return release;
+				}
+				if (fallback == null && release.recommended) {
+					fallback = release;
+				}
+			} else if (StringUtils.isNumeric(version)) {
+				if (version.equals(release.major) && release.extra.isEmpty()) {
+					return release;
+				}
+				if (fallback == null && version.equals(release.major)) {
+					fallback = release;
+				}
+			} else if (fullVersion.equals(release.version)) {
+				return release;
+			}
+		}
+		if (fallback != null) {
+			return fallback;
+		}
+		throw new IOException("Unable to find a release of "+project.getName()+" matching version '"+version+"'");
+	}
+
+	/**
+	 * Cached release history feed.
+	 */
+	private static class Feed {
+
+		private List<Release> releases = null;
+		private String etag = null;
+		private String lastModified = null;
+		private long checked = 0;
+
+		/**
+		 * Download the feed, unless it has not changed since the last download.
+		 */
+		private void refresh(URL url, String name) throws IOException {
+			URLConnection connection = open(url);
+			if (releases != null && connection instanceof HttpURLConnection) {
+				if (etag != null) {
+					connection.setRequestProperty("If-None-Match", etag);
+				}
+				if (lastModified != null) {
+					connection.setRequestProperty("If-Modified-Since", lastModified);
+				}
+			}
+			if (connection instanceof HttpURLConnection && ((HttpURLConnection) connection).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				checked = System.currentTimeMillis();
+				return;
+			}
+			InputStream in = connection.getInputStream();
+			try {
+				releases = Collections.unmodifiableList(parse(in));
+			} catch (XMLStreamException e) {
+				throw new IOException("Unable to parse release history of "+name, e);
+			} finally {
+				IOUtils.closeQuietly(in);
+			}
+			etag = connection.getHeaderField("ETag");
+			lastModified = connection.getHeaderField("Last-Modified");
+			checked = System.currentTimeMillis();
+		}
+
+	}
+
+	/**
+	 * Release of a project.
+	 */
+	public static class Release implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private String name = "";
+		private String version = "";
+		private String major = "";
+		private String extra = "";
+		private String url = "";
+		private String md5 = "";
+		private boolean recommended = false;
+
+		private Release() {
+		}
+
+		public Release(String name, String version, String url, String md5) {
+			this.name = name;
+			this.version = version;
+			this.url = url;
+			this.md5 = md5;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getVersion() {
+			return version;
+		}
+
+		/**
+		 * Get URL of the archive (tar.gz).
+		 */
+		public String getUrl() {
+			return url;
+		}
+
+		/**
+		 * Get MD5 checksum of the archive, or an empty string if unknown.
+		 */
+		public String getMd5() {
+			return md5;
+		}
+
+	}
+
+}
@@ -0,0 +1,562 @@
+/*
+ * Copyright (c) 2015 Fengtan<https://github.com/fengtan/>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.jenkinsci.plugins.drupal.scm;
+
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.remoting.RemoteInputStream;
+import hudson.remoting.RemoteInputStream.Flag;
+import hudson.remoting.RemoteOutputStream;
+import hudson.remoting.VirtualChannel;
+import jenkins.model.Jenkins;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.io.output.NullOutputStream;
+
+/**
+ * Snapshots of Drupal code bases stored on the controller, keyed by the hash of the normalized Makefile and the
+ * releases it resolved into, so agents which never built a Makefile do not need to run 'drush make'.
+ *
+ * Files are stored once, compressed and keyed by the SHA-1 of their content, so snapshots of similar code bases
+ * share most of their storage. Agents only send files the controller does not have yet; files are compressed
+ * on the agent and sent to agents the way they are stored, without being compressed again.
+ *
+ * @author Fengtan https://github.com/fengtan/
+ *
+ */
+public class SnapshotStore {
+
+	// Snapshots are disabled unless this system property is set.
+	public static final boolean ENABLED = Boolean.getBoolean(SnapshotStore.class.getName()+".enabled");
+
+	// Maximum number of snapshots kept on the controller.
+	private static final int MAX_SNAPSHOTS = Integer.getInteger(SnapshotStore.class.getName()+".maxSnapshots", 10);
+
+	// Store directory, relative to JENKINS_HOME.
+	private static final String STORE_DIR = "drupal-snapshots";
+	private static final String SNAPSHOTS_DIR = "snapshots";
+	private static final String BLOBS_DIR = "blobs";
+
+	// Types of manifest entries and of frames sent to agents.
+	private static final char FILE = 'F';
+	private static final char DIRECTORY = 'D';
+	private static final char LINK = 'L';
+	private static final int END = 0;
+
+	// Maximum size of the chunks of compressed files sent by nodes.
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	// Serialize writes to the store.
+	private static final Object LOCK = new Object();
+
+	// Snapshots being restored, with the number of concurrent restores: eviction leaves them alone.
+	private static final Map<String, Integer> PINNED = new HashMap<String, Integer>();
+
+	private final File dir;
+
+	public SnapshotStore(File dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * Get the store of the controller.
+	 */
+	public static SnapshotStore get() {
+		return new SnapshotStore(new File(Jenkins.getInstance().getRootDir(), STORE_DIR));
+	}
+
+	private File getManifest(String hash) {
+		return new File(new File(dir, SNAPSHOTS_DIR), hash);
+	}
+
+	private File getBlob(String sha1) {
+		return new File(new File(new File(dir, BLOBS_DIR), sha1.substring(0, 2)), sha1+".gz");
+	}
+
+	public boolean contains(String hash) {
+		return getManifest(hash).exists();
+	}
+
+	/**
+	 * Save a Drupal root (possibly on an agent) as a snapshot.
+	 * Returns the number of files which were not in the store yet.
+	 */
+	public int store(String hash, FilePath rootPath) throws IOException, InterruptedException {
+		// Files are shared between snapshots, so eviction must not run while a snapshot is being stored.
+		synchronized (LOCK) {
+			return doStore(hash, rootPath);
+		}
+	}
+
+	private int doStore(String hash, FilePath rootPath) throws IOException, InterruptedException {
+		// Scan the Drupal root on the node: paths, modes and SHA-1 of files.
+		List<String> entries = rootPath.act(new Scan());
+
+		// Only fetch files the store does not have yet.
+		Set<String> missing = new LinkedHashSet<String>();
+		for (String entry: entries) {
+			String[] fields = entry.split("\t", 4);
+			if (fields[0].charAt(0) == FILE && !getBlob(fields[2]).exists()) {
+				missing.add(fields[2]+"\t"+fields[3]);
+			}
+		}
+		if (!missing.isEmpty()) {
+			dir.mkdirs();
+			File spool = File.createTempFile("snapshot", ".spool", dir);
+			try {
+				OutputStream out = new BufferedOutputStream(new FileOutputStream(spool));
+				try {
+					rootPath.act(new Pack(new ArrayList<String>(missing), new RemoteOutputStream(out)));
+				} finally {
+					IOUtils.closeQuietly(out);
+				}
+				ingest(spool);
+			} finally {
+				FileUtils.deleteQuietly(spool);
+			}
+		}
+
+		File manifest = getManifest(hash);
+		manifest.getParentFile().mkdirs();
+		File tmp = new File(manifest.getPath()+".tmp"+System.nanoTime());
+		FileUtils.writeLines(tmp, "UTF-8", entries, "\n");
+		Files.move(tmp.toPath(), manifest.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		evict();
+		return missing.size();
+	}
+
+	/**
+	 * Save compressed files sent by a node into the store.
+	 * Files are read chunk by chunk, so memory usage does not depend on their size.
+	 */
+	private void ingest(File spool) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(spool)));
+		byte[] buffer = new byte[CHUNK_SIZE];
+		try {
+			while (true) {
+				String sha1;
+				try {
+					sha1 = in.readUTF();
+				} catch (EOFException e) {
+					break;
+				}
+				File blob = getBlob(sha1);
+				// Files already in the store are read anyway, to get to the next one.
+				File tmp = blob.exists() ? null : new File(blob.getPath()+".tmp"+System.nanoTime());
+				OutputStream out = NullOutputStream.NULL_OUTPUT_STREAM;
+				if (tmp != null) {
+					blob.getParentFile().mkdirs();
+					out = new FileOutputStream(tmp);
+				}
+				try {
+					int length;
+					while ((length = in.readInt()) != 0) {
+						if (length < 0 || length > CHUNK_SIZE) {
+							throw new IOException("Corrupted chunk of "+sha1+": "+length+" bytes");
+						}
+						in.readFully(buffer, 0, length);
+						out.write(buffer, 0, length);
+					}
+					out.close();
+					if (tmp != null) {
+						Files.move(tmp.toPath(), blob.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+					}
+				} finally {
+					IOUtils.closeQuietly(out);
+					if (tmp != null) {
+						FileUtils.deleteQuietly(tmp);
+					}
+				}
+			}
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	/**
+	 * Unpack a snapshot into a Drupal root (possibly on an agent).
+	 * Compressed files are streamed to the node the way they are stored.
+	 */
+	public void restore(String hash, FilePath rootPath) throws IOException, InterruptedException {
+		// Blobs are read lazily: pin the snapshot so a concurrent store does not evict them meanwhile.
+		final List<String> entries;
+		synchronized (LOCK) {
+			File manifest = getManifest(hash);
+			if (!manifest.exists()) {
+				throw new IOException("Snapshot "+hash+" no longer exists");
+			}
+			entries = FileUtils.readLines(manifest, "UTF-8");
+			manifest.setLastModified(System.currentTimeMillis());
+			Integer count = PINNED.get(hash);
+			PINNED.put(hash, (count == null) ? 1 : count + 1);
+		}
+		try {
+			doRestore(hash, entries, rootPath);
+		} finally {
+			synchronized (LOCK) {
+				int count = PINNED.get(hash);
+				if (count == 1) {
+					PINNED.remove(hash);
+				} else {
+					PINNED.put(hash, count - 1);
+				}
+			}
+		}
+	}
+
+	private void doRestore(String hash, List<String> entries, FilePath rootPath) throws IOException, InterruptedException {
+		// Frames are generated lazily while the node reads them.
+		final Iterator<String> iterator = entries.iterator();
+		InputStream frames = new SequenceInputStream(new Enumeration<InputStream>() {
+			private boolean ended = false;
+			@Override
+			public boolean hasMoreElements() {
+				return !ended;
+			}
+			@Override
+			public InputStream nextElement() {
+				try {
+					if (!iterator.hasNext()) {
+						ended = true;
+						return new ByteArrayInputStream(new byte[] {END});
+					}
+					return frame(iterator.next());
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		});
+		try {
+			rootPath.act(new Unpack(new RemoteInputStream(frames, Flag.GREEDY)));
+		} catch (IllegalStateException e) {
+			throw new IOException("Unable to restore snapshot "+hash, e.getCause());
+		} finally {
+			IOUtils.closeQuietly(frames);
+		}
+	}
+
+	/**
+	 * Generate the frame of a manifest entry: header, then compressed content for files.
+	 */
+	private InputStream frame(String entry) throws IOException {
+		String[] fields = entry.split("\t", 4);
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(header);
+		out.writeByte(fields[0].charAt(0));
+		out.writeUTF(fields[3]);
+		out.writeInt(Integer.parseInt(fields[1], 8));
+		if (fields[0].charAt(0) == LINK) {
+			out.writeUTF(fields[2]);
+		}
+		if (fields[0].charAt(0) != FILE) {
+			out.close();
+			return new ByteArrayInputStream(header.toByteArray());
+		}
+		File blob = getBlob(fields[2]);
+		out.writeLong(blob.length());
+		out.close();
+		return new SequenceInputStream(new ByteArrayInputStream(header.toByteArray()), new FileInputStream(blob));
+	}
+
+	/**
+	 * Delete least recently used snapshots, except those being restored, then files no snapshot uses anymore.
+	 */
+	private void evict() throws IOException {
+		File[] manifests = new File(dir, SNAPSHOTS_DIR).listFiles();
+		if (manifests == null || manifests.length <= MAX_SNAPSHOTS) {
+			return;
+		}
+		List<File> sorted = new ArrayList<File>(Arrays.asList(manifests));
+		Collections.sort(sorted, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Long.compare(b.lastModified(), a.lastModified());
+			}
+		});
+		List<File> kept = new ArrayList<File>(sorted.subList(0, MAX_SNAPSHOTS));
+		for (File manifest: sorted.subList(MAX_SNAPSHOTS, sorted.size())) {
+			if (PINNED.containsKey(manifest.getName())) {
+				kept.add(manifest);
+			} else {
+				FileUtils.deleteQuietly(manifest);
+			}
+		}
+
+		Set<String> used = new HashSet<String>();
+		for (File manifest: kept) {
+			for (String entry: FileUtils.readLines(manifest, "UTF-8")) {
+				String[] fields = entry.split("\t", 4);
+				if (fields[0].charAt(0) == FILE) {
+					used.add(fields[2]+".gz");
+				}
+			}
+		}
+		File[] prefixes = new File(dir, BLOBS_DIR).listFiles();
+		if (prefixes != null) {
+			for (File prefix: prefixes) {
+				File[] blobs = prefix.listFiles();
+				if (blobs != null) {
+					for (File blob: blobs) {
+						if (!used.contains(blob.getName())) {
+							FileUtils.deleteQuietly(blob);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Mode of a file as an octal string: only the executable bit matters.
+	 */
+	private static String getMode(File file) {
+		return file.canExecute() ? "755" : "644";
+	}
+
+	/**
+	 * List entries of a Drupal root: 'type mode sha1-or-link-target path', separated by tabs.
+	 */
+	private static class Scan implements FileCallable<List<String>> {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public List<String> invoke(File root, VirtualChannel channel) throws IOException {
+			final Path from = root.toPath();
+			final List<String> entries = new ArrayList<String>();
+			final MessageDigest digest;
+			try {
+				digest = MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IOException(e);
+			}
+			Files.walkFileTree(from, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+					if (!dir.equals(from)) {
+						entries.add(DIRECTORY+"\t755\t-\t"+path(dir));
+					}
+					return FileVisitResult.CONTINUE;
+				}
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+					if (attrs.isSymbolicLink()) {
+						// Links into the Drupal root are stored relative, so they still work once restored elsewhere.
+						Path target = Files.readSymbolicLink(file);
+						if (target.isAbsolute() && target.normalize().startsWith(from)) {
+							target = file.getParent().relativize(target.normalize());
+						}
+						entries.add(LINK+"\t777\t"+target.toString().replace(File.separatorChar, '/')+"\t"+path(file));
+					} else if (attrs.isRegularFile()) {
+						digest.reset();
+						InputStream in = new FileInputStream(file.toFile());
+						try {
+							byte[] buffer = new byte[65536];
+							int read;
+							while ((read = in.read(buffer)) != -1) {
+								digest.update(buffer, 0, read);
+							}
+						} finally {
+							IOUtils.closeQuietly(in);
+						}
+						entries.add(FILE+"\t"+getMode(file.toFile())+"\t"+Hex.encodeHexString(digest.digest())+"\t"+path(file));
+					}
+					return FileVisitResult.CONTINUE;
+				}
+				private String path(Path path) {
+					return from.relativize(path).toString().replace(File.separatorChar, '/');
+				}
+			});
+			return entries;
+		}
+
+	}
+
+	/**
+	 * Send compressed files to the controller: 'sha1 chunk... 0' frames, every chunk being 'length data'.
+	 * Files are compressed while they are sent, so memory usage does not depend on their size.
+	 */
+	private static class Pack implements FileCallable<Void> {
+
+		private static final long serialVersionUID = 1L;
+
+		// 'sha1 path' of every file to send.
+		private final List<String> files;
+		private final OutputStream out;
+
+		private Pack(List<String> files, OutputStream out) {
+			this.files = files;
+			this.out = out;
+		}
+
+		@Override
+		public Void invoke(File root, VirtualChannel channel) throws IOException {
+			DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+			try {
+				for (String file: files) {
+					String[] fields = file.split("\t", 2);
+					data.writeUTF(fields[0]);
+					OutputStream gzip = new GZIPOutputStream(new BufferedOutputStream(new ChunkedOutputStream(data), CHUNK_SIZE));
+					FileUtils.copyFile(new File(root, fields[1]), gzip);
+					// Writes the last chunk and the end marker, but leaves the stream of frames open.
+					gzip.close();
+				}
+			} finally {
+				data.close();
+			}
+			return null;
+		}
+
+	}
+
+	/**
+	 * Split data into 'length data' chunks of at most CHUNK_SIZE bytes, followed by a zero length when closed.
+	 */
+	private static class ChunkedOutputStream extends OutputStream {
+
+		private final DataOutputStream out;
+
+		private ChunkedOutputStream(DataOutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				int chunk = Math.min(len, CHUNK_SIZE);
+				out.writeInt(chunk);
+				out.write(b, off, chunk);
+				off += chunk;
+				len -= chunk;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.writeInt(0);
+		}
+
+	}
+
+	/**
+	 * Create directories, links and files sent by the controller.
+	 */
+	private static class Unpack implements FileCallable<Void> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final InputStream in;
+
+		private Unpack(InputStream in) {
+			this.in = in;
+		}
+
+		@Override
+		public Void invoke(File root, VirtualChannel channel) throws IOException {
+			DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+			try {
+				root.mkdirs();
+				Path rootPath = root.toPath().toAbsolutePath().normalize();
+				int type;
+				while ((type = data.readByte()) != END) {
+					String path = data.readUTF();
+					File file = new File(root, path);
+					if (!file.toPath().toAbsolutePath().normalize().startsWith(rootPath)) {
+						throw new IOException("Refusing to write "+path+" outside of the Drupal root");
+					}
+					int mode = data.readInt();
+					if (type == DIRECTORY) {
+						file.mkdirs();
+					} else if (type == LINK) {
+						// Links must not point outside of the Drupal root.
+						Path target = new File(data.readUTF()).toPath();
+						if (target.isAbsolute() || !file.toPath().toAbsolutePath().getParent().resolve(target).normalize().startsWith(rootPath)) {
+							throw new IOException("Refusing to create link "+path+" to "+target+" outside of the Drupal root");
+						}
+						Files.createSymbolicLink(file.toPath(), target);
+					} else {
+						BoundedInputStream content = new BoundedInputStream(data, data.readLong());
+						content.setPropagateClose(false);
+						InputStream gzip = new GZIPInputStream(content);
+						try {
+							FileUtils.copyInputStreamToFile(gzip, file);
+						} finally {
+							IOUtils.closeQuietly(gzip);
+						}
+						// Make sure the next frame starts where expected.
+						IOUtils.skip(content, Long.MAX_VALUE);
+						if ((mode & 0100) != 0) {
+							file.setExecutable(true, false);
+						}
+					}
+				}
+			} finally {
+				IOUtils.closeQuietly(data);
+			}
+			return null;
+		}
+
+	}
+
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2015 Fengtan<https://github.com/fengtan/>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.jenkinsci.plugins.drupal.scm;
+
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Delete directories in the background.
+ *
+ * Directories are first renamed into a trash directory (which is atomic and does not depend on the size of the tree)
+ * and then deleted by a pool of threads. Trash left behind by a previous run (e.g. if Jenkins crashed) is recovered
+ * by reap().
+ *
+ * @author Fengtan https://github.com/fengtan/
+ *
+ */
+public class TrashReaper {
+
+	// Trash directory, relative to the workspace.
+	public static final String TRASH_DIR = ".drupal-trash";
+
+	// Number of threads deleting files.
+	private static final int THREADS = Integer.getInteger(TrashReaper.class.getName()+".threads", 4);
+
+	private static final Logger LOGGER = Logger.getLogger(TrashReaper.class.getName());
+
+	// Schedule deletion of trash entries, one at a time.
+	private static final ExecutorService SCHEDULER = Executors.newSingleThreadExecutor(new DaemonThreadFactory());
+
+	// Delete subtrees of a trash entry concurrently.
+	private static final ExecutorService DELETERS = Executors.newFixedThreadPool(THREADS, new DaemonThreadFactory());
+
+	// Trash entries currently scheduled for deletion.
+	private static final Set<String> SCHEDULED = Collections.synchronizedSet(new HashSet<String>());
+
+	/**
+	 * Move a directory into the trash directory of a workspace and delete it in the background.
+	 * Falls back to deleting the directory right away if it cannot be moved.
+	 */
+	public static void trash(File dir, File workspace) {
+		File trashDir = new File(workspace, TRASH_DIR);
+		trashDir.mkdirs();
+		File entry = new File(trashDir, UUID.randomUUID().toString());
+		try {
+			Files.move(dir.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			LOGGER.log(Level.FINE, "Unable to move "+dir+" into the trash, deleting it right away", e);
+			delete(dir.toPath());
+			return;
+		}
+		schedule(entry);
+	}
+
+	/**
+	 * Schedule deletion of trash left behind in a workspace by a previous run.
+	 */
+	public static void reap(File workspace) {
+		File[] entries = new File(workspace, TRASH_DIR).listFiles();
+		if (entries != null) {
+			for (File entry: entries) {
+				schedule(entry);
+			}
+		}
+	}
+
+	/**
+	 * Same as trash(File, File), on the node holding the workspace.
+	 */
+	public static void trash(FilePath dir, FilePath workspace) throws IOException, InterruptedException {
+		dir.act(new Trash(workspace.getRemote()));
+	}
+
+	/**
+	 * Same as reap(File), on the node holding the workspace.
+	 */
+	public static void reap(FilePath workspace) throws IOException, InterruptedException {
+		workspace.act(new Reap());
+	}
+
+	private static void schedule(final File entry) {
+		if (!SCHEDULED.add(entry.getAbsolutePath())) {
+			return;
+		}
+		SCHEDULER.submit(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					deleteConcurrently(entry);
+				} finally {
+					SCHEDULED.remove(entry.getAbsolutePath());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Delete top-level subtrees of a directory concurrently, then the directory itself.
+	 */
+	private static void deleteConcurrently(File entry) {
+		File[] children = entry.listFiles();
+		entry.setWritable(true);
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		if (children != null) {
+			for (final File child: children) {
+				futures.add(DELETERS.submit(new Runnable() {
+					@Override
+					public void run() {
+						delete(child.toPath());
+					}
+				}));
+			}
+		}
+		for (Future<?> future: futures) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException e) {
+				LOGGER.log(Level.WARNING, "Unable to delete trash "+entry, e);
+			}
+		}
+		delete(entry.toPath());
+	}
+
+	/**
+	 * Delete a tree, making directories writable first (Drupal makes sites/default read-only).
+	 */
+	private static void delete(Path path) {
+		try {
+			if (!Files.isDirectory(path) || Files.isSymbolicLink(path)) {
+				Files.deleteIfExists(path);
+				return;
+			}
+			Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+					dir.toFile().setWritable(true);
+					return FileVisitResult.CONTINUE;
+				}
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+					Files.deleteIfExists(file);
+					return FileVisitResult.CONTINUE;
+				}
+				@Override
+				public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+					Files.deleteIfExists(dir);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Unable to delete "+path+", retrying", e);
+			FileUtils.deleteQuietly(path.toFile());
+		}
+	}
+
+	private static class Trash implements FileCallable<Void> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String workspace;
+
+		private Trash(String workspace) {
+			this.workspace = workspace;
+		}
+
+		@Override
+		public Void invoke(File dir, VirtualChannel channel) {
+			trash(dir, new File(workspace));
+			return null;
+		}
+
+	}
+
+	private static class Reap implements FileCallable<Void> {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public Void invoke(File workspace, VirtualChannel channel) {
+			reap(workspace);
+			return null;
+		}
+
+	}
+
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2015 Fengtan<https://github.com/fengtan/>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.jenkinsci.plugins.drupal.scm;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.SystemUtils;
+
+/**
+ * Clone Drupal code bases cheaply.
+ *
+ * Uses copy-on-write copies (reflinks) when the file system supports them. Otherwise clones hard-link files,
+ * except for writable paths (sites/* other than sites/all) which are real copies: hard-linked files are
+ * shared by all clones, so they are made read-only. Copies never link nor modify their source.
+ *
+ * @author Fengtan https://github.com/fengtan/
+ *
+ */
+public class TreeCloner {
+
+	public enum Method { REFLINK, HARDLINK, COPY }
+
+	private static final Logger LOGGER = Logger.getLogger(TreeCloner.class.getName());
+
+	// Whether 'cp --reflink=always' works, keyed by source and destination file systems. Unknown until first tried.
+	private static final ConcurrentMap<String, Boolean> REFLINK_SUPPORTED = new ConcurrentHashMap<String, Boolean>();
+
+	/**
+	 * Clone a directory into a new directory, e.g. to materialize a cached code base into a Drupal root.
+	 */
+	public static Method clone(File source, File destination) throws IOException, InterruptedException {
+		if (reflink(source, destination)) {
+			return Method.REFLINK;
+		}
+		return walk(source, destination, true);
+	}
+
+	/**
+	 * Copy a directory into a new directory, e.g. to store a Drupal root into a cache.
+	 */
+	public static Method copy(File source, File destination) throws IOException, InterruptedException {
+		if (reflink(source, destination)) {
+			return Method.REFLINK;
+		}
+		return walk(source, destination, false);
+	}
+
+	/**
+	 * Clone a directory using copy-on-write copies.
+	 * Return false if the file systems do not support them, in which case nothing is left in the destination.
+	 */
+	private static boolean reflink(File source, File destination) throws IOException, InterruptedException {
+		if (!SystemUtils.IS_OS_LINUX) {
+			return false;
+		}
+		destination.getParentFile().mkdirs();
+		String fileSystems = getFileStore(source)+" -> "+getFileStore(destination.getParentFile());
+		if (Boolean.FALSE.equals(REFLINK_SUPPORTED.get(fileSystems))) {
+			return false;
+		}
+		ProcessBuilder builder = new ProcessBuilder("cp", "-a", "--reflink=always", source.getAbsolutePath(), destination.getAbsolutePath());
+		builder.redirectErrorStream(true);
+		try {
+			Process process = builder.start();
+			String output;
+			try {
+				output = IOUtils.toString(process.getInputStream());
+			} finally {
+				IOUtils.closeQuietly(process.getInputStream());
+			}
+			if (process.waitFor() == 0) {
+				REFLINK_SUPPORTED.put(fileSystems, Boolean.TRUE);
+				return true;
+			}
+			LOGGER.log(Level.FINE, "Unable to reflink {0} ({1}): {2}", new Object[] {source, fileSystems, output});
+		} catch (IOException e) {
+			LOGGER.log(Level.FINE, "Unable to run cp", e);
+		}
+		FileUtils.deleteDirectory(destination);
+		// Do not give up on file systems where reflinks already worked: the failure is likely transient.
+		REFLINK_SUPPORTED.putIfAbsent(fileSystems, Boolean.FALSE);
+		return false;
+	}
+
+	/**
+	 * Identify the file system holding a file.
+	 */
+	private static String getFileStore(File file) {
+		try {
+			return Files.getFileStore(file.toPath()).toString();
+		} catch (IOException e) {
+			return file.getAbsolutePath();
+		}
+	}
+
+	/**
+	 * Copy a directory file by file. If link is true, files are hard-linked except for writable paths.
+	 * Falls back to copies for files which cannot be linked (e.g. different file systems).
+	 */
+	private static Method walk(File source, File destination, final boolean link) throws IOException {
+		final Path from = source.toPath();
+		final Path to = destination.toPath();
+		final Method[] method = {link ? Method.HARDLINK : Method.COPY};
+		Files.walkFileTree(from, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				Files.createDirectories(to.resolve(from.relativize(dir).toString()));
+				return FileVisitResult.CONTINUE;
+			}
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				String path = from.relativize(file).toString().replace(File.separatorChar, '/');
+				Path target = to.resolve(path);
+				if (link && attrs.isRegularFile() && !isWritable(path)) {
+					try {
+						Files.createLink(target, file);
+						if (!SystemUtils.IS_OS_WINDOWS) {
+							file.toFile().setWritable(false, false);
+						}
+						return FileVisitResult.CONTINUE;
+					} catch (IOException e) {
+						method[0] = Method.COPY;
+					} catch (UnsupportedOperationException e) {
+						method[0] = Method.COPY;
+					}
+				}
+				Files.copy(file, target, StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING, LinkOption.NOFOLLOW_LINKS);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		return method[0];
+	}
+
+	/**
+	 * Return true if Drupal may write into a path (relative to the Drupal root): settings, files, etc.
+	 */
+	public static boolean isWritable(String path) {
+		return path.startsWith("sites/") && !path.startsWith("sites/all/");
+	}
+
+}
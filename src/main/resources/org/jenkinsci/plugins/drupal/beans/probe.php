@@ -0,0 +1,39 @@
+// Report status, extensions and (optionally) tests of a Drupal 7 site as a single JSON document.
+// Evaluated by 'drush php-eval': $tests is set by the caller.
+$probe = array('status' => array(), 'extensions' => array());
+
+global $databases;
+if (!empty($databases['default']['default']['database'])) {
+  $probe['status']['db-name'] = $databases['default']['default']['database'];
+}
+
+foreach (array('module' => system_rebuild_module_data(), 'theme' => system_rebuild_theme_data()) as $type => $extensions) {
+  foreach ($extensions as $name => $extension) {
+    if ($extension->status) {
+      $status = 'Enabled';
+    }
+    elseif (isset($extension->schema_version) && $extension->schema_version == -1) {
+      $status = 'Not installed';
+    }
+    else {
+      $status = 'Disabled';
+    }
+    $probe['extensions'][$name] = array(
+      'type' => $type,
+      'status' => $status,
+      'version' => isset($extension->info['version']) ? $extension->info['version'] : '',
+      'schema' => isset($extension->schema_version) ? (string) $extension->schema_version : '',
+    );
+  }
+}
+
+if ($tests && module_exists('simpletest')) {
+  $probe['tests'] = array();
+  foreach (simpletest_test_get_all() as $group => $classes) {
+    foreach ($classes as $class => $info) {
+      $probe['tests'][] = array('group' => $group, 'class' => $class);
+    }
+  }
+}
+
+print json_encode($probe);
@@ -0,0 +1,30 @@
+// Run Drush commands sent on stdin, in a single bootstrapped PHP process.
+// Evaluated by 'drush php-eval'.
+// Request:  "<length>\n" followed by {"command": "...", "arguments": [...], "options": {...}}
+// Response: "<length>\n" followed by {"ok": true|false, "output": "...", "result": "<JSON encoded return value>"}
+while (($header = fgets(STDIN)) !== FALSE) {
+  $length = (int) trim($header);
+  $payload = '';
+  while (strlen($payload) < $length && !feof(STDIN)) {
+    $payload .= fread(STDIN, $length - strlen($payload));
+  }
+  $request = json_decode($payload, TRUE);
+  $options = isset($request['options']) ? $request['options'] : array();
+  foreach ($options as $name => $value) {
+    drush_set_option($name, $value);
+  }
+
+  ob_start();
+  $result = drush_invoke($request['command'], isset($request['arguments']) ? $request['arguments'] : array());
+  $output = ob_get_clean();
+  $ok = ($result !== FALSE) && !drush_get_error();
+
+  foreach ($options as $name => $value) {
+    drush_unset_option($name);
+  }
+  drush_clear_error();
+
+  $response = json_encode(array('ok' => $ok, 'output' => $output, 'result' => json_encode($result)));
+  fwrite(STDOUT, strlen($response) . "\n" . $response);
+  fflush(STDOUT);
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2015 Fengtan<https://github.com/fengtan/>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.jenkinsci.plugins.drupal.scm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import hudson.FilePath;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.util.StreamTaskListener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Checkouts of a Makefile whose projects are not pinned, against a stand-in for updates.drupal.org.
+ *
+ * @author Fengtan https://github.com/fengtan/
+ *
+ */
+public class DrushMakefileSCMTest {
+
+	private static final String MAKEFILE = "core = 7.x\napi = 2\nprojects[drupal] = 7.38\nprojects[views] = 3\n";
+
+	// Content served by the stand-in, keyed by path.
+	private static final Map<String, byte[]> CONTENT = new ConcurrentHashMap<String, byte[]>();
+
+	private static HttpServer server;
+	private static String url;
+
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	@BeforeClass
+	public static void startServer() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] content = CONTENT.get(exchange.getRequestURI().getPath());
+				exchange.sendResponseHeaders(content == null ? 404 : 200, content == null ? -1 : content.length);
+				OutputStream out = exchange.getResponseBody();
+				if (content != null) {
+					out.write(content);
+				}
+				out.close();
+			}
+		});
+		server.start();
+		url = "http://127.0.0.1:"+server.getAddress().getPort();
+		// Feeds must be checked again on every lookup.
+		ReleaseHistory.setDefaultUrl(url+"/release-history");
+		ReleaseHistory.setCacheTtl(0);
+	}
+
+	@AfterClass
+	public static void stopServer() {
+		ReleaseHistory.setDefaultUrl(ReleaseHistory.DEFAULT_URL);
+		ReleaseHistory.setCacheTtl(ReleaseHistory.DEFAULT_CACHE_TTL);
+		server.stop(0);
+	}
+
+	@Before
+	public void publishInitialReleases() throws Exception {
+		CONTENT.clear();
+		publish("drupal", "7.38", "7", "7.38", "drupal-7.38", "index.php");
+		publish("views", "7.x-3.10", "3", "7.x-3.10", "views", "views.info");
+	}
+
+	/**
+	 * A new release found by polling is installed by the next (incremental) checkout.
+	 */
+	@Test
+	public void testUpdateInstallsNewRelease() throws Exception {
+		FreeStyleProject project = createProject();
+		assertEquals("7.x-3.10", getViewsVersion(j.buildAndAssertSuccess(project)));
+
+		publish("views", "7.x-3.11", "3", "7.x-3.11\n7.x-3.10", "views", "views.info");
+		assertTrue(project.poll(StreamTaskListener.fromStdout()).hasChanges());
+		assertEquals("7.x-3.11", getViewsVersion(j.buildAndAssertSuccess(project)));
+	}
+
+	/**
+	 * A new release found by polling is not replaced by the code base cached for the same Makefile.
+	 */
+	@Test
+	public void testCacheDoesNotRestoreOldRelease() throws Exception {
+		FreeStyleProject project = createProject();
+		FreeStyleBuild build = j.buildAndAssertSuccess(project);
+		assertEquals("7.x-3.10", getViewsVersion(build));
+
+		publish("views", "7.x-3.11", "3", "7.x-3.11\n7.x-3.10", "views", "views.info");
+		assertTrue(project.poll(StreamTaskListener.fromStdout()).hasChanges());
+		// Without a workspace the checkout cannot update the Drupal root, and looks up the cache instead.
+		build.getWorkspace().deleteRecursive();
+		assertEquals("7.x-3.11", getViewsVersion(j.buildAndAssertSuccess(project)));
+	}
+
+	private FreeStyleProject createProject() throws IOException {
+		FreeStyleProject project = j.createFreeStyleProject();
+		project.setScm(new DrushMakefileSCM(MAKEFILE, "drupal", true));
+		return project;
+	}
+
+	private String getViewsVersion(FreeStyleBuild build) throws Exception {
+		String info = build.getWorkspace().child("drupal/sites/all/modules/views/views.info").readToString();
+		return info.replaceFirst("(?s).*version = \"([^\"]*)\".*", "$1");
+	}
+
+	/**
+	 * Publish the release history feed of a project, and an archive of its newest release.
+	 *
+	 * @param versions Versions listed by the feed, newest first, separated by new lines.
+	 */
+	private void publish(String name, String version, String major, String versions, String dir, String file) throws Exception {
+		File source = tmp.newFolder();
+		FileUtils.writeStringToFile(new File(source, dir+"/"+file), "name = "+name+"\nversion = \""+version+"\"\n");
+		ByteArrayOutputStream archive = new ByteArrayOutputStream();
+		OutputStream gzip = new GZIPOutputStream(archive);
+		new FilePath(source).tar(gzip, dir+"/**");
+		gzip.close();
+		String archivePath = "/files/projects/"+name+"-"+version+".tar.gz";
+		CONTENT.put(archivePath, archive.toByteArray());
+
+		StringBuilder feed = new StringBuilder();
+		feed.append("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n");
+		feed.append("<project><short_name>"+name+"</short_name><api_version>7.x</api_version>");
+		feed.append("<recommended_major>"+major+"</recommended_major><releases>");
+		for (String release: versions.split("\n")) {
+			String link = url+"/files/projects/"+name+"-"+release+".tar.gz";
+			String md5 = release.equals(version) ? DigestUtils.md5Hex(archive.toByteArray()) : "";
+			String patch = release.substring(release.lastIndexOf('.') + 1);
+			feed.append("<release><name>"+name+" "+release+"</name><version>"+release+"</version>");
+			feed.append("<version_major>"+major+"</version_major><version_patch>"+patch+"</version_patch>");
+			feed.append("<download_link>"+link+"</download_link><mdhash>"+md5+"</mdhash></release>");
+		}
+		feed.append("</releases></project>\n");
+		CONTENT.put("/release-history/"+name+"/7.x", feed.toString().getBytes("UTF-8"));
+	}
+
+}